@@ -29,6 +29,9 @@ public class VideoProcessResultEventHandler {
             if ("SUCCESS".equals(status)) {
                 VideoProcessSuccessEvent successEvent = mapper.readValue(message, VideoProcessSuccessEvent.class);
                 service.videoProcessSuccess(successEvent);
+            } else if ("RENDITION_READY".equals(status)) {
+                VideoProcessSuccessEvent readyEvent = mapper.readValue(message, VideoProcessSuccessEvent.class);
+                service.videoRenditionReady(readyEvent);
             } else if ("FAILURE".equals(status)) {
                 VideoProcessFailureEvent failureEvent = mapper.readValue(message, VideoProcessFailureEvent.class);
                 service.videoProcessFailed(failureEvent);
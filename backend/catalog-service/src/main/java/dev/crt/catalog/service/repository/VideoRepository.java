@@ -9,10 +9,24 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.UUID;
 
 @Repository
 public interface VideoRepository extends JpaRepository<Video, UUID> {
+
+    // What the storage reconciler needs to know about every video, without loading the rendition maps
+    interface StorageRef {
+        UUID getId();
+        VideoStatus getStatus();
+        LocalDateTime getCreatedAt();
+        String getThumbnailUrl();
+    }
+
+    @Query("SELECT v.id AS id, v.status AS status, v.createdAt AS createdAt, v.thumbnailUrl AS thumbnailUrl FROM Video v")
+    List<StorageRef> findStorageRefs();
+
     Page<Video> findByStatus(VideoStatus status, Pageable pageable);
 
     Page<Video> findByTitleContainingIgnoreCaseOrDescriptionContainingIgnoreCaseAndStatus(
@@ -146,6 +146,9 @@ public class CatalogService {
     public void videoProcessSuccess(VideoProcessSuccessEvent event){
         Video video = repository.findById(event.videoId()).orElseThrow(()-> new VideoNotFoundException("Video not found"));
 
+        // The creator was already notified when the first rendition became playable
+        boolean alreadyWatchable = video.getStatus() == VideoStatus.READY;
+
         video.setStatus(VideoStatus.READY);
         String duration = event.resolutions().remove("duration");
         video.setDuration(duration);
@@ -153,16 +156,57 @@ public class CatalogService {
 
         repository.save(video);
 
-        kafkaPublisher.sendVideoNotification(new VideoNotificationEvent(
-                video.getCreatorId(),
-                video.getId(),
-                "SUCCESS",
-                "Your video is ready!"));
+        if (!alreadyWatchable) {
+            kafkaPublisher.sendVideoNotification(new VideoNotificationEvent(
+                    video.getCreatorId(),
+                    video.getId(),
+                    "SUCCESS",
+                    "Your video is ready!"));
+        }
+    }
+
+    // A rendition finished ahead of the rest of the ladder: the video becomes watchable and gains qualities as they land
+    public void videoRenditionReady(VideoProcessSuccessEvent event){
+        Video video = repository.findById(event.videoId()).orElseThrow(()-> new VideoNotFoundException("Video not found"));
+
+        if (video.getStatus() == VideoStatus.FAILED) {
+            return;
+        }
+
+        boolean firstRendition = video.getStatus() != VideoStatus.READY;
+
+        Map<String, String> videoUrls = new HashMap<>();
+        if (video.getVideoUrls() != null) {
+            videoUrls.putAll(video.getVideoUrls());
+        }
+        String duration = event.resolutions().remove("duration");
+        videoUrls.putAll(event.resolutions());
+
+        video.setStatus(VideoStatus.READY);
+        video.setDuration(duration);
+        video.setVideoUrls(videoUrls);
+
+        repository.save(video);
+
+        if (firstRendition) {
+            kafkaPublisher.sendVideoNotification(new VideoNotificationEvent(
+                    video.getCreatorId(),
+                    video.getId(),
+                    "SUCCESS",
+                    "Your video is ready!"));
+        }
     }
 
     public void videoProcessFailed(VideoProcessFailureEvent event){
         Video video = repository.findById(event.videoId()).orElseThrow(()-> new VideoNotFoundException("Video not found"));
 
+        // A progressive job already made the video watchable; losing its higher rungs does not undo that
+        if (video.getStatus() == VideoStatus.READY) {
+            System.err.println("Video " + video.getId() + " stays READY with its published renditions after a failure: "
+                    + event.errorMessage());
+            return;
+        }
+
         video.setStatus(VideoStatus.FAILED);
 
         repository.save(video);
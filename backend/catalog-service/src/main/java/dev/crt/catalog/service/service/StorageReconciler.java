@@ -0,0 +1,278 @@
+package dev.crt.catalog.service.service;
+
+import dev.crt.catalog.service.domain.VideoStatus;
+import dev.crt.catalog.service.repository.VideoRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Reclaims upload storage the catalog no longer points at:
+// - video folders and thumbnails without a record, left behind when the upload's Kafka publish failed
+// - files of failed videos past their retention; their records only go with storage-gc.delete-failed-records
+// - intermediates inside finished video folders: transcoded MP4s and hidden staging/state files
+// Anything modified within the grace period is left alone, so uploads still on their way to the catalog and
+// progressive videos that are READY while their higher renditions are still encoding survive.
+@Service
+public class StorageReconciler {
+
+    private static final String ORPHANED_VIDEO = "orphaned-video";
+    private static final String ORPHANED_IMAGE = "orphaned-image";
+    private static final String FAILED_VIDEO = "failed-video";
+    private static final String INTERMEDIATE = "intermediate";
+
+    // failedVideoId is set for files of a failed video, whose record may go once they are all deleted
+    private record Candidate(Path path, long bytes, String reason, UUID failedVideoId) {}
+
+    private final Path rootPath = Paths.get("uploads");
+    private final VideoRepository repository;
+
+    @Value("${storage-gc.enabled:true}")
+    private boolean enabled;
+
+    // Only report what would be reclaimed
+    @Value("${storage-gc.dry-run:false}")
+    private boolean dryRun;
+
+    @Value("${storage-gc.grace-period-hours:24}")
+    private long gracePeriodHours;
+
+    @Value("${storage-gc.failed-retention-days:7}")
+    private long failedRetentionDays;
+
+    // Failed video records are kept by default, so the creator still sees what failed
+    @Value("${storage-gc.delete-failed-records:false}")
+    private boolean deleteFailedRecords;
+
+    @Value("${storage-gc.batch-size:100}")
+    private int batchSize;
+
+    @Value("${storage-gc.batch-pause-ms:1000}")
+    private long batchPauseMs;
+
+    public StorageReconciler(VideoRepository repository) {
+        this.repository = repository;
+    }
+
+    @Scheduled(initialDelayString = "${storage-gc.initial-delay-minutes:10}",
+            fixedDelayString = "${storage-gc.interval-minutes:360}", timeUnit = TimeUnit.MINUTES)
+    public void scheduledRun() {
+        if (enabled) {
+            reconcile();
+        }
+    }
+
+    public synchronized void reconcile() {
+        List<Candidate> candidates = new ArrayList<>();
+        try {
+            collect(candidates);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Storage GC: scanning " + rootPath.toAbsolutePath() + " failed: " + e.getMessage());
+            return;
+        }
+
+        Map<String, Long> bytesByReason = candidates.stream()
+                .collect(Collectors.groupingBy(Candidate::reason, TreeMap::new, Collectors.summingLong(Candidate::bytes)));
+        System.out.println("Storage GC" + (dryRun ? " (dry run)" : "") + ": " + candidates.size() + " items, "
+                + megabytes(bytesByReason.values().stream().mapToLong(Long::longValue).sum()) + " reclaimable "
+                + bytesByReason.entrySet().stream()
+                        .map(entry -> entry.getKey() + "=" + megabytes(entry.getValue()))
+                        .collect(Collectors.joining(", ", "(", ")")));
+
+        if (!dryRun && !candidates.isEmpty()) {
+            delete(candidates);
+        }
+    }
+
+    private void collect(List<Candidate> candidates) throws IOException {
+        Instant cutoff = Instant.now().minusSeconds(gracePeriodHours * 3600);
+        LocalDateTime failedCutoff = LocalDateTime.now().minusDays(failedRetentionDays);
+
+        Map<UUID, VideoRepository.StorageRef> videos = repository.findStorageRefs().stream()
+                .collect(Collectors.toMap(VideoRepository.StorageRef::getId, ref -> ref));
+        Set<String> thumbnails = new HashSet<>();
+
+        for (VideoRepository.StorageRef video : videos.values()) {
+            boolean expired = video.getStatus() == VideoStatus.FAILED && video.getCreatedAt().isBefore(failedCutoff);
+            if (expired) {
+                Path thumbnail = rootPath.resolve(video.getThumbnailUrl()).normalize();
+                if (Files.isRegularFile(thumbnail)) {
+                    candidates.add(new Candidate(thumbnail, Files.size(thumbnail), FAILED_VIDEO, video.getId()));
+                }
+            } else {
+                thumbnails.add(video.getThumbnailUrl());
+            }
+        }
+
+        for (Path folder : list(rootPath.resolve("videos"))) {
+            UUID videoId = videoId(folder);
+            if (videoId == null || !Files.isDirectory(folder)) {
+                continue;
+            }
+            VideoRepository.StorageRef video = videos.get(videoId);
+
+            if (video == null) {
+                if (lastModified(folder).isBefore(cutoff)) {
+                    candidates.add(new Candidate(folder, size(folder), ORPHANED_VIDEO, null));
+                }
+            } else if (video.getStatus() == VideoStatus.FAILED) {
+                if (video.getCreatedAt().isBefore(failedCutoff)) {
+                    candidates.add(new Candidate(folder, size(folder), FAILED_VIDEO, videoId));
+                }
+            } else if (video.getStatus() == VideoStatus.READY && lastModified(folder).isBefore(cutoff)) {
+                // Pending videos, and READY ones still gaining renditions, may be transcoding; only settled
+                // folders are searched for leftovers
+                collectIntermediates(folder, cutoff, candidates);
+            }
+        }
+
+        for (Path image : list(rootPath.resolve("images"))) {
+            String relativePath = rootPath.relativize(image).toString().replace("\\", "/");
+            if (Files.isRegularFile(image) && !thumbnails.contains(relativePath)
+                    && Files.getLastModifiedTime(image).toInstant().isBefore(cutoff)) {
+                candidates.add(new Candidate(image, Files.size(image), ORPHANED_IMAGE, null));
+            }
+        }
+    }
+
+    // Hidden entries are staging folders, temp files and resume state of the processor
+    private void collectIntermediates(Path videoFolder, Instant cutoff, List<Candidate> candidates) throws IOException {
+        for (Path entry : list(videoFolder)) {
+            String name = entry.getFileName().toString();
+            if (name.startsWith(".")) {
+                if (lastModified(entry).isBefore(cutoff)) {
+                    candidates.add(new Candidate(entry, size(entry), INTERMEDIATE, null));
+                }
+            } else if (Files.isDirectory(entry)) {
+                Path mp4 = entry.resolve(name + ".mp4");
+                if (Files.isRegularFile(mp4) && isSegmentedFrom(mp4)) {
+                    candidates.add(new Candidate(mp4, Files.size(mp4), INTERMEDIATE, null));
+                }
+            }
+        }
+    }
+
+    // <quality folder>/<quality folder>.mp4 is either the transcoded file older pipelines segmented from, finished
+    // before the first segment was written, or a download the processor writes alongside or after the segments
+    private boolean isSegmentedFrom(Path mp4) throws IOException {
+        Instant mp4Modified = Files.getLastModifiedTime(mp4).toInstant();
+        Instant firstSegment = null;
+        for (Path file : list(mp4.getParent())) {
+            if (!file.equals(mp4) && Files.isRegularFile(file)) {
+                Instant modified = Files.getLastModifiedTime(file).toInstant();
+                firstSegment = firstSegment == null || modified.isBefore(firstSegment) ? modified : firstSegment;
+            }
+        }
+        return firstSegment != null && mp4Modified.isBefore(firstSegment);
+    }
+
+    // Deletes in batches with a pause in between, so the sweep never competes with uploads and streaming for the disk
+    private void delete(List<Candidate> candidates) {
+        int deleted = 0;
+        long reclaimed = 0;
+        Set<UUID> failedVideos = new HashSet<>();
+        Set<UUID> incompleteFailedVideos = new HashSet<>();
+
+        for (int start = 0; start < candidates.size(); start += batchSize) {
+            if (start > 0) {
+                try {
+                    Thread.sleep(batchPauseMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            for (Candidate candidate : candidates.subList(start, Math.min(start + batchSize, candidates.size()))) {
+                if (candidate.failedVideoId() != null) {
+                    failedVideos.add(candidate.failedVideoId());
+                }
+                try {
+                    deleteRecursively(candidate.path());
+                    deleted++;
+                    reclaimed += candidate.bytes();
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Storage GC: could not delete " + candidate.path() + ": " + e.getMessage());
+                    if (candidate.failedVideoId() != null) {
+                        incompleteFailedVideos.add(candidate.failedVideoId());
+                    }
+                }
+            }
+        }
+
+        failedVideos.removeAll(incompleteFailedVideos);
+        if (deleteFailedRecords) {
+            repository.deleteAllById(failedVideos);
+        }
+
+        System.out.println("Storage GC: deleted " + deleted + " of " + candidates.size() + " items, "
+                + megabytes(reclaimed) + " reclaimed, " + failedVideos.size() + " failed videos "
+                + (deleteFailedRecords ? "removed" : "cleared of their files"));
+    }
+
+    private List<Path> list(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return List.of();
+        }
+        try (Stream<Path> entries = Files.list(folder)) {
+            return entries.toList();
+        }
+    }
+
+    private UUID videoId(Path folder) {
+        try {
+            return UUID.fromString(folder.getFileName().toString());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Newest modification anywhere below the path: a folder still being written to is not abandoned
+    private Instant lastModified(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            return paths.map(entry -> {
+                        try {
+                            return Files.getLastModifiedTime(entry).toInstant();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .max(Comparator.naturalOrder())
+                    .orElse(Instant.EPOCH);
+        }
+    }
+
+    private long size(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            return paths.filter(Files::isRegularFile)
+                    .mapToLong(file -> file.toFile().length())
+                    .sum();
+        }
+    }
+
+    private void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path entry : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    private String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / 1048576.0);
+    }
+}
@@ -20,6 +20,14 @@ public class KafkaReactiveConfig {
     @Value("${spring.kafka.bootstrap-servers}")
     private String bootstrapServers;
 
+    // Small polls keep records that are waiting for a worker slot from piling up in memory
+    @Value("${processor.consumer.max-poll-records:2}")
+    private int maxPollRecords;
+
+    // Acknowledged offsets that may wait for an earlier, still running record of the same partition
+    @Value("${processor.consumer.max-deferred-commits:100}")
+    private int maxDeferredCommits;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     // Reactive producer configuration
@@ -44,12 +52,15 @@ public class KafkaReactiveConfig {
                 ConsumerConfig.GROUP_ID_CONFIG, "processor-service-group",
                 ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer",
                 ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer",
-                ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest"
+                ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest",
+                ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords
         );
 
         ReceiverOptions<String, String> receiverOptions =
                 ReceiverOptions.<String, String>create(consumerProps)
-                        .subscription(List.of("video.cataloged.event"));
+                        .subscription(List.of("video.cataloged.event", "video.chunk.task"))
+                        // Offsets are only committed once every earlier record of the partition is acknowledged
+                        .maxDeferredCommits(maxDeferredCommits);
 
         return KafkaReceiver.create(receiverOptions);
     }
@@ -0,0 +1,43 @@
+package dev.crt.processor.service.controller;
+
+import dev.crt.processor.service.progress.JobProgress;
+import dev.crt.processor.service.progress.TranscodeProgressTracker;
+import dev.crt.processor.service.supervisor.FFmpegSupervisor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+@RestController
+@RequestMapping("/api/v1/processor/jobs")
+public class TranscodeJobController {
+
+    private final TranscodeProgressTracker progress;
+    private final FFmpegSupervisor supervisor;
+
+    public TranscodeJobController(TranscodeProgressTracker progress, FFmpegSupervisor supervisor) {
+        this.progress = progress;
+        this.supervisor = supervisor;
+    }
+
+    @GetMapping
+    public ResponseEntity<List<JobProgress>> getJobs() {
+        return ResponseEntity.ok(progress.snapshot());
+    }
+
+    @GetMapping("/{videoId}")
+    public ResponseEntity<JobProgress> getJob(@PathVariable UUID videoId) {
+        return progress.snapshot(videoId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    // For deleted or superseded videos: stops running FFmpeg processes and any run the job would still start
+    @DeleteMapping("/{videoId}")
+    public ResponseEntity<Map<String, Object>> cancelJob(@PathVariable UUID videoId) {
+        int stopped = supervisor.cancel(videoId);
+        return ResponseEntity.accepted().body(Map.of("videoId", videoId, "stoppedProcesses", stopped));
+    }
+}
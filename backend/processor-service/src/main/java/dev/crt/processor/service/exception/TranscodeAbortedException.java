@@ -0,0 +1,18 @@
+package dev.crt.processor.service.exception;
+
+// A transcode stopped by the supervisor rather than failed by FFmpeg; the code ends up in the failure event
+public class TranscodeAbortedException extends RuntimeException {
+    public static final String CANCELLED = "TRANSCODING_CANCELLED";
+    public static final String TIMEOUT = "TRANSCODING_TIMEOUT";
+
+    private final String errorCode;
+
+    public TranscodeAbortedException(String errorCode, String message){
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+}
@@ -1,19 +1,57 @@
 package dev.crt.processor.service.kafka.consumer;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import jakarta.annotation.PostConstruct;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
 import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverRecord;
+import reactor.util.retry.Retry;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+// Transcodes take minutes, so records are consumed as jobs rather than messages: a bounded number run per
+// partition, at most max-in-flight run in total (records already polled wait for a free slot), the consumer pauses
+// its partitions while every slot is taken (it keeps polling, so it stays in the group), and an offset is
+// acknowledged once the job has published its result event or has failed for good.
 @Component
 public class KafkaConsumerRunner {
     private final KafkaReceiver<String, String> receiver;
     private final Map<String, EventHandler> handlers;
 
+    // A record's claim on one of the max-in-flight job slots
+    private static final class Slot {
+        private MonoSink<Void> sink;
+        private boolean granted;
+        private boolean done;
+    }
+
+    // Jobs holding a slot, across all partitions, and records waiting for one
+    private int inFlight;
+    private final Queue<Slot> waiting = new ArrayDeque<>();
+    private boolean paused;
+    // Only touched on the consumer thread through doOnConsumer
+    private final Set<TopicPartition> pausedPartitions = new HashSet<>();
+
+    @Value("${processor.consumer.max-in-flight:4}")
+    private int maxInFlight;
+
+    @Value("${processor.consumer.jobs-per-partition:1}")
+    private int jobsPerPartition;
+
+    @Value("${processor.consumer.handler-retries:3}")
+    private int handlerRetries;
+
     public KafkaConsumerRunner(KafkaReceiver<String, String> receiver,
                                List<EventHandler> handlerList){
         this.receiver = receiver;
@@ -26,23 +64,152 @@ public class KafkaConsumerRunner {
     }
 
     public void subscribe(){
-        receiver.receive()
-                .flatMap(record -> {
-                    String topic = record.topic();
-                    String json = record.value();
-
-                    System.out.println(json);
-
-                    EventHandler handler = handlers.get(topic);
-                    if(handler == null){
-                        System.err.println("No handler for topic: "+topic);
-                        record.receiverOffset().acknowledge();
-                        return Mono.empty();
+        Mono.defer(() -> {
+                    // A restarted consumer starts with nothing paused; jobs of the old one were cancelled
+                    synchronized (this) {
+                        paused = false;
+                        pausedPartitions.clear();
                     }
-
-                    return handler.handle(json)
-                            .doFinally(s -> record.receiverOffset().acknowledge());
+                    // The groupBy argument only bounds how many records are fetched ahead; the slots enforce the limit
+                    return receiver.receive()
+                            .groupBy(record -> record.receiverOffset().topicPartition(), Math.max(1, maxInFlight))
+                            .flatMap(partition -> partition.flatMap(this::process, Math.max(1, jobsPerPartition)),
+                                    Integer.MAX_VALUE)
+                            .then();
                 })
+                // Only consumer-level errors get here; unacknowledged records are redelivered to the new consumer and
+                // finished renditions are not encoded again
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .doBeforeRetry(signal -> System.err.println("Kafka consumer failed, restarting: "
+                                + signal.failure().getMessage())))
                 .subscribe();
     }
+
+    private Mono<Void> process(ReceiverRecord<String, String> record) {
+        Slot slot = new Slot();
+        return Mono.<Void>create(sink -> acquire(slot, sink))
+                .then(Mono.defer(() -> handle(record)))
+                .doFinally(s -> release(slot));
+    }
+
+    private Mono<Void> handle(ReceiverRecord<String, String> record) {
+        String topic = record.topic();
+        String json = record.value();
+
+        System.out.println(json);
+
+        EventHandler handler = handlers.get(topic);
+        if(handler == null){
+            System.err.println("No handler for topic: "+topic);
+            record.receiverOffset().acknowledge();
+            return Mono.empty();
+        }
+
+        return handler.handle(json)
+                .retryWhen(Retry.backoff(handlerRetries, Duration.ofSeconds(2))
+                        .filter(e -> !isUnreadable(e))
+                        .onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+                .doOnSuccess(v -> record.receiverOffset().acknowledge())
+                .onErrorResume(e -> {
+                    // Failing the pipeline here would cancel every other job in flight, so a record that still fails
+                    // after its retries is logged and skipped
+                    String reason = isUnreadable(e) ? "unreadable" : "failed after " + handlerRetries + " retries";
+                    System.err.println("Skipping record at " + record.receiverOffset().topicPartition()
+                            + "@" + record.receiverOffset().offset() + " (" + reason + "): " + e.getMessage());
+                    record.receiverOffset().acknowledge();
+                    return Mono.empty();
+                });
+    }
+
+    // Grants a free slot right away, or queues the record until a running job releases one
+    private void acquire(Slot slot, MonoSink<Void> sink) {
+        synchronized (this) {
+            slot.sink = sink;
+            if (slot.done) {
+                return;
+            }
+            if (inFlight >= maxInFlight) {
+                waiting.add(slot);
+                return;
+            }
+            inFlight++;
+            slot.granted = true;
+            atLimit();
+        }
+        sink.success();
+    }
+
+    // Runs once per record, on completion, error or cancellation; a held slot is handed to the next waiting record
+    private void release(Slot slot) {
+        Slot next;
+        synchronized (this) {
+            if (slot.done) {
+                return;
+            }
+            slot.done = true;
+            if (!slot.granted) {
+                waiting.remove(slot);
+                return;
+            }
+            next = waiting.poll();
+            if (next != null) {
+                next.granted = true;
+                atLimit();
+            } else if (--inFlight < maxInFlight && paused) {
+                paused = false;
+                resume();
+            }
+        }
+        if (next != null) {
+            next.sink.success();
+        }
+    }
+
+    private void atLimit() {
+        // Checked on every job so partitions assigned by a rebalance while at the limit are paused too
+        if (inFlight >= maxInFlight) {
+            paused = true;
+            pause();
+        }
+    }
+
+    private void pause() {
+        receiver.doOnConsumer(consumer -> {
+                    Set<TopicPartition> partitions = new HashSet<>(consumer.assignment());
+                    partitions.removeAll(pausedPartitions);
+                    consumer.pause(partitions);
+                    pausedPartitions.addAll(partitions);
+                    return partitions.size();
+                })
+                .subscribe(count -> {
+                            if (count > 0) {
+                                System.out.println("Worker limit of " + maxInFlight + " jobs reached, paused " + count + " partitions");
+                            }
+                        },
+                        e -> System.err.println("Could not pause partitions: " + e.getMessage()));
+    }
+
+    // Only resumes what was paused here; partitions Reactor Kafka paused for backpressure stay under its control
+    private void resume() {
+        receiver.doOnConsumer(consumer -> {
+                    List<TopicPartition> partitions = pausedPartitions.stream()
+                            .filter(consumer.assignment()::contains)
+                            .toList();
+                    consumer.resume(partitions);
+                    pausedPartitions.clear();
+                    return partitions.size();
+                })
+                .subscribe(count -> System.out.println("Resumed " + count + " partitions"),
+                        e -> System.err.println("Could not resume partitions: " + e.getMessage()));
+    }
+
+    private boolean isUnreadable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonProcessingException) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
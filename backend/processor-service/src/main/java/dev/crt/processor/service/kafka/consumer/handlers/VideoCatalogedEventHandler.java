@@ -1,8 +1,11 @@
 package dev.crt.processor.service.kafka.consumer.handlers;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.crt.processor.service.exception.TranscodeAbortedException;
 import dev.crt.processor.service.kafka.consumer.EventHandler;
 import dev.crt.processor.service.kafka.events.VideoCatalogedEvent;
+import dev.crt.processor.service.scheduler.TranscodeScheduler;
+import dev.crt.processor.service.service.DistributedTranscodeCoordinator;
 import dev.crt.processor.service.service.VideoProcessor;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
@@ -11,10 +14,15 @@ import reactor.core.publisher.Mono;
 public class VideoCatalogedEventHandler implements EventHandler {
     private final ObjectMapper mapper;
     private final VideoProcessor processor;
+    private final TranscodeScheduler scheduler;
+    private final DistributedTranscodeCoordinator coordinator;
 
-    public VideoCatalogedEventHandler(ObjectMapper mapper, VideoProcessor processor) {
+    public VideoCatalogedEventHandler(ObjectMapper mapper, VideoProcessor processor, TranscodeScheduler scheduler,
+                                      DistributedTranscodeCoordinator coordinator) {
         this.mapper = mapper;
         this.processor = processor;
+        this.scheduler = scheduler;
+        this.coordinator = coordinator;
     }
 
 
@@ -33,14 +41,34 @@ public class VideoCatalogedEventHandler implements EventHandler {
             return Mono.error(new RuntimeException("Failed to read VideoCatalogedEvent", e));
         }
 
-        return processor.processVideo(event.videoId(), event.videoUrl())
-                .flatMap(videoUrls -> processor.publishProcessingSuccess(event.videoId(), videoUrls))
+        return processor.probe(event.videoId(), event.videoUrl())
+                .flatMap(probe -> {
+                    long priority = Math.round(probe.duration() * 1000);
+
+                    // Chunk tasks go out to every instance; whoever finishes the last one publishes the result.
+                    // Only the ladder's trial encode runs here, as a job of its own.
+                    if (coordinator.shouldDistribute(probe.duration())) {
+                        return scheduler.submit(event.videoId(), priority,
+                                        threads -> processor.ladder(event.videoId(), event.videoUrl(), probe, threads))
+                                .flatMap(ladder -> coordinator.fanOut(event.videoId(), event.videoUrl(), probe, ladder));
+                    }
+
+                    // Short clips are admitted first; chunked long videos ask for the whole CPU budget.
+                    // The trial encode is part of the job, so it waits for and counts against the same budget.
+                    return scheduler.submit(event.videoId(), priority,
+                            processor.isChunked(probe.duration()) ? scheduler.getCapacity() : scheduler.getThreadsPerJob(),
+                            threads -> processor.ladder(event.videoId(), event.videoUrl(), probe, threads)
+                                    .flatMap(ladder -> processor.processVideo(event.videoId(), event.videoUrl(), probe, ladder, threads)
+                                            .flatMap(videoUrls -> processor.publishProcessingSuccess(event.videoId(), videoUrls, probe, ladder))));
+                })
                 .onErrorResume(e -> {
                     String errorMessage = e.getMessage() != null ? e.getMessage() : "Unknown error during transcoding.";
 
                     System.err.println("Error processing video " + event.videoId() + ": " + errorMessage);
 
-                    return processor.publishProcessingFailure(event.videoId(), "TRANSCODING_ERROR", errorMessage);
+                    String errorCode = e instanceof TranscodeAbortedException aborted ? aborted.getErrorCode() : "TRANSCODING_ERROR";
+
+                    return processor.publishProcessingFailure(event.videoId(), errorCode, errorMessage);
                 });
     }
 }
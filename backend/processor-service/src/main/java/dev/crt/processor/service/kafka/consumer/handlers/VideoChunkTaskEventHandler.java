@@ -0,0 +1,42 @@
+package dev.crt.processor.service.kafka.consumer.handlers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.crt.processor.service.kafka.consumer.EventHandler;
+import dev.crt.processor.service.kafka.events.VideoChunkTaskEvent;
+import dev.crt.processor.service.scheduler.TranscodeScheduler;
+import dev.crt.processor.service.service.DistributedTranscodeCoordinator;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+@Component
+public class VideoChunkTaskEventHandler implements EventHandler {
+    private final ObjectMapper mapper;
+    private final DistributedTranscodeCoordinator coordinator;
+    private final TranscodeScheduler scheduler;
+
+    public VideoChunkTaskEventHandler(ObjectMapper mapper, DistributedTranscodeCoordinator coordinator,
+                                      TranscodeScheduler scheduler) {
+        this.mapper = mapper;
+        this.coordinator = coordinator;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public String getTopic() {
+        return DistributedTranscodeCoordinator.TASK_TOPIC;
+    }
+
+    @Override
+    public Mono<Void> handle(String json) {
+        VideoChunkTaskEvent task;
+        try {
+            task = mapper.readValue(json, VideoChunkTaskEvent.class);
+        } catch (Exception e){
+            return Mono.error(new RuntimeException("Failed to read VideoChunkTaskEvent", e));
+        }
+
+        // Earlier chunks first, so every video's opening segments are ready as soon as possible
+        return scheduler.submit(task.videoId(), (long) (task.start() * 1000), coordinator.getThreadsPerChunk(),
+                threads -> coordinator.runTask(task, threads));
+    }
+}
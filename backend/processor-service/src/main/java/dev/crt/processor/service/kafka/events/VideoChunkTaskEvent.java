@@ -0,0 +1,16 @@
+package dev.crt.processor.service.kafka.events;
+
+import dev.crt.processor.service.media.Rendition;
+
+import java.util.List;
+import java.util.UUID;
+
+public record VideoChunkTaskEvent(
+        UUID videoId,
+        String videoUrl,
+        List<Rendition> ladder,
+        int chunkIndex,
+        int chunkCount,
+        double start,
+        double end
+){}
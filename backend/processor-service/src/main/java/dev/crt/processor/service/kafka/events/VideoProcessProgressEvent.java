@@ -0,0 +1,11 @@
+package dev.crt.processor.service.kafka.events;
+
+import dev.crt.processor.service.progress.JobProgress;
+
+import java.util.UUID;
+
+public record VideoProcessProgressEvent(
+        UUID videoId,
+        String status,
+        JobProgress progress
+){}
@@ -1,10 +1,16 @@
 package dev.crt.processor.service.kafka.events;
 
+import dev.crt.processor.service.media.MediaProbe;
+import dev.crt.processor.service.media.Rendition;
+
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 public record VideoProcessSuccessEvent(
         UUID videoId,
         String status,
-        Map<String, String> resolutions
+        Map<String, String> resolutions,
+        MediaProbe probe,
+        List<Rendition> ladder
 ){}
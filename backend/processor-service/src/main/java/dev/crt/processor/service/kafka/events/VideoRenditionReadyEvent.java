@@ -0,0 +1,10 @@
+package dev.crt.processor.service.kafka.events;
+
+import java.util.Map;
+import java.util.UUID;
+
+public record VideoRenditionReadyEvent(
+        UUID videoId,
+        String status,
+        Map<String, String> resolutions
+){}
@@ -0,0 +1,146 @@
+package dev.crt.processor.service.media;
+
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import dev.crt.processor.service.exception.TranscodeAbortedException;
+import dev.crt.processor.service.supervisor.FFmpegSupervisor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fast per-title analysis: a few short samples spread over the source are encoded together at low resolution
+// with a fixed CRF, and the bits that took per pixel rate how hard the content is to compress.
+// The trial runs under the supervisor, so it is niced, timed out and cancelled with the rest of its video's job.
+@Component
+public class ComplexityAnalyzer {
+
+    private static final int TRIAL_SHORT_SIDE = 360;
+    private static final int TRIAL_CRF = 23;
+
+    @Value("${processor.complexity.enabled:true}")
+    private boolean enabled;
+
+    @Value("${processor.complexity.samples:4}")
+    private int samples;
+
+    @Value("${processor.complexity.sample-seconds:3}")
+    private double sampleSeconds;
+
+    @Value("${processor.complexity.low-bpp:0.04}")
+    private double lowBitsPerPixel;
+
+    @Value("${processor.complexity.high-bpp:0.12}")
+    private double highBitsPerPixel;
+
+    private final FFmpegSupervisor supervisor;
+
+    public ComplexityAnalyzer(FFmpegSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    // Null when analysis is disabled or the trial fails; the ladder then falls back to its defaults.
+    // A cancelled video fails here instead of building a ladder it will never encode.
+    public ContentComplexity analyze(UUID videoId, Path input, MediaProbe probe, int threads) {
+        if (!enabled || probe.duration() <= 0) {
+            return null;
+        }
+
+        Path trial = null;
+        try {
+            trial = Files.createTempFile("complexity-", ".mkv");
+            int width = even((double) probe.width() * TRIAL_SHORT_SIDE / probe.shortSide());
+            int height = even((double) probe.height() * TRIAL_SHORT_SIDE / probe.shortSide());
+            if (probe.shortSide() < TRIAL_SHORT_SIDE) {
+                width = even(probe.width());
+                height = even(probe.height());
+            }
+
+            FFmpeg ffmpeg = supervisor.ffmpeg().setLogLevel(LogLevel.ERROR).setOverwriteOutput(true);
+
+            // Short sources are analysed whole; longer ones by evenly spaced samples concatenated into one stream
+            int count = probe.duration() <= samples * sampleSeconds * 2 ? 1 : samples;
+            StringBuilder graph = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                UrlInput sample = UrlInput.fromPath(input);
+                if (count > 1) {
+                    double start = probe.duration() * (i + 0.5) / count - sampleSeconds / 2;
+                    sample.setPosition((long) (Math.max(0, start) * 1000))
+                            .setDuration((long) (sampleSeconds * 1000));
+                }
+                ffmpeg.addInput(sample);
+                graph.append(String.format(Locale.ROOT, "[%d:v]scale=%d:%d,setsar=1[t%d];", i, width, height, i));
+            }
+            for (int i = 0; i < count; i++) {
+                graph.append("[t").append(i).append("]");
+            }
+            graph.append("concat=n=").append(count).append(":v=1:a=0[trial]");
+
+            AtomicLong frames = new AtomicLong();
+            ffmpeg.setComplexFilter(graph.toString())
+                    .addOutput(UrlOutput.toPath(trial)
+                            .setFormat("matroska")
+                            .addArguments("-map", "[trial]")
+                            .addArguments("-c:v", "libx264")
+                            .addArguments("-preset", "veryfast")
+                            .addArguments("-crf", String.valueOf(TRIAL_CRF))
+                            .addArguments("-threads", String.valueOf(Math.max(1, threads))))
+                    .setProgressListener(progress -> {
+                        if (progress.getFrame() != null) {
+                            frames.set(progress.getFrame());
+                        }
+                    });
+
+            supervisor.execute(videoId, ffmpeg, count == 1 ? probe.duration() : count * sampleSeconds, 1);
+
+            if (frames.get() == 0) {
+                return null;
+            }
+            double bitsPerPixel = Files.size(trial) * 8.0 / ((double) frames.get() * width * height);
+            ContentComplexity complexity = new ContentComplexity(bitsPerPixel, level(bitsPerPixel));
+
+            System.out.println(String.format(Locale.ROOT, "Content complexity of %s: %.4f bits per pixel (%s)",
+                    input.getFileName(), bitsPerPixel, complexity.level()));
+            return complexity;
+        } catch (TranscodeAbortedException e) {
+            if (TranscodeAbortedException.CANCELLED.equals(e.getErrorCode())) {
+                throw e;
+            }
+            System.err.println("Complexity analysis of " + input.getFileName() + " failed, using the default ladder: " + e.getMessage());
+            return null;
+        } catch (Exception e) {
+            System.err.println("Complexity analysis of " + input.getFileName() + " failed, using the default ladder: " + e.getMessage());
+            return null;
+        } finally {
+            if (trial != null) {
+                try {
+                    Files.deleteIfExists(trial);
+                } catch (IOException ignored) {
+                    // Only a temp file
+                }
+            }
+        }
+    }
+
+    private ContentComplexity.Level level(double bitsPerPixel) {
+        if (bitsPerPixel < lowBitsPerPixel) {
+            return ContentComplexity.Level.LOW;
+        }
+        if (bitsPerPixel > highBitsPerPixel) {
+            return ContentComplexity.Level.HIGH;
+        }
+        return ContentComplexity.Level.MEDIUM;
+    }
+
+    private int even(double value) {
+        int rounded = (int) Math.round(value);
+        return Math.max(2, rounded - rounded % 2);
+    }
+}
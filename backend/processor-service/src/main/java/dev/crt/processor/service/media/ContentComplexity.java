@@ -0,0 +1,8 @@
+package dev.crt.processor.service.media;
+
+// Outcome of the trial encode: bits x264 spent per pixel at a fixed CRF on samples of the source.
+// Slideshows and screen recordings land far below a typical video, game captures and sports far above.
+public record ContentComplexity(double bitsPerPixel, Level level) {
+
+    public enum Level { LOW, MEDIUM, HIGH }
+}
@@ -0,0 +1,125 @@
+package dev.crt.processor.service.media;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Builds the per-video rendition ladder from the probed source instead of always producing 1080p/720p/360p
+@Component
+public class EncodingLadder {
+
+    private record Rung(String quality, int shortSide, int bitrateKbps) {}
+
+    // Encoder settings for a level of content complexity: CRF offset, x264 preset and a factor on the bitrate caps
+    private record Tuning(int crfOffset, String preset, double capFactor) {}
+
+    private static final int BASE_CRF = 23;
+    private static final Tuning DEFAULT_TUNING = new Tuning(0, "fast", 1.0);
+
+    // Simple content hides a higher CRF, and a slower preset costs little on it while saving more bits;
+    // complex content keeps the CRF but gets cap headroom so motion does not fall apart against the maxrate
+    private static final Map<ContentComplexity.Level, Tuning> TUNINGS = Map.of(
+            ContentComplexity.Level.LOW, new Tuning(2, "medium", 0.6),
+            ContentComplexity.Level.MEDIUM, DEFAULT_TUNING,
+            ContentComplexity.Level.HIGH, new Tuning(0, "fast", 1.25)
+    );
+
+    // Extra codecs reach the same quality with fewer bits. CRF scales differ per encoder, and SVT-AV1 names
+    // its presets by number.
+    private record CodecProfile(int crfOffset, double bitrateFactor, Map<String, String> presets) {}
+
+    private static final Map<String, CodecProfile> CODECS = Map.of(
+            Rendition.HEVC, new CodecProfile(5, 0.7, Map.of()),
+            Rendition.AV1, new CodecProfile(12, 0.6, Map.of("medium", "6", "fast", "8"))
+    );
+
+    // Target bitrates are for ~30 fps content and are scaled up for high frame rates
+    private static final List<Rung> RUNGS = List.of(
+            new Rung("1080p", 1080, 5000),
+            new Rung("720p", 720, 2800),
+            new Rung("360p", 360, 800)
+    );
+
+    @Value("${processor.ladder.max-frame-rate:60}")
+    private double maxFrameRate;
+
+    // hevc and/or av1, encoded next to the H.264 ladder
+    @Value("${processor.ladder.extra-codecs:}")
+    private List<String> extraCodecs;
+
+    // Extra codecs only pay off where the bytes are, so small rungs stay H.264-only
+    @Value("${processor.ladder.extra-codecs-min-short-side:720}")
+    private int extraCodecsMinShortSide;
+
+    // Without a complexity result every rung gets the same default settings
+    public List<Rendition> build(MediaProbe probe, ContentComplexity complexity) {
+        Tuning tuning = complexity != null ? TUNINGS.get(complexity.level()) : DEFAULT_TUNING;
+        int sourceShortSide = probe.shortSide();
+        List<Rendition> ladder = new ArrayList<>();
+
+        for (Rung rung : RUNGS) {
+            if (rung.shortSide() <= sourceShortSide) {
+                ladder.add(rendition(probe, tuning, rung.quality(), rung.shortSide(), rung.bitrateKbps()));
+            }
+        }
+
+        // Sources smaller than the lowest rung get a single rendition at their own size
+        if (ladder.isEmpty()) {
+            Rung lowest = RUNGS.get(RUNGS.size() - 1);
+            int shortSide = even(sourceShortSide);
+            int bitrate = (int) ((long) lowest.bitrateKbps() * shortSide * shortSide / ((long) lowest.shortSide() * lowest.shortSide()));
+            ladder.add(rendition(probe, tuning, shortSide + "p", shortSide, Math.max(bitrate, 200)));
+        }
+
+        // Extras go in front: the last rung stays the H.264 one that is encoded first and samples the storyboard
+        List<Rendition> extras = new ArrayList<>();
+        for (String codec : extraCodecs) {
+            CodecProfile profile = CODECS.get(codec.trim());
+            if (profile == null) {
+                continue;
+            }
+            for (Rendition base : ladder) {
+                if (Math.min(base.width(), base.height()) >= extraCodecsMinShortSide) {
+                    extras.add(withCodec(base, codec.trim(), profile));
+                }
+            }
+        }
+        extras.addAll(ladder);
+
+        return extras;
+    }
+
+    private Rendition rendition(MediaProbe probe, Tuning tuning, String quality, int shortSide, int baseBitrateKbps) {
+        int longSide = even((double) shortSide * Math.max(probe.width(), probe.height()) / probe.shortSide());
+        int width = probe.isPortrait() ? shortSide : longSide;
+        int height = probe.isPortrait() ? longSide : shortSide;
+
+        double sourceFrameRate = probe.frameRate() > 0 ? probe.frameRate() : 30;
+        boolean capped = sourceFrameRate > maxFrameRate;
+        double frameRate = capped ? maxFrameRate : sourceFrameRate;
+
+        int bitrate = (int) ((frameRate > 30 ? baseBitrateKbps * 1.5 : baseBitrateKbps) * tuning.capFactor());
+        // Never ask for more than the source carries; upscaling bits adds nothing
+        if (probe.videoBitrateKbps() > 0) {
+            bitrate = (int) Math.min(bitrate, Math.max(probe.videoBitrateKbps(), 200));
+        }
+
+        return new Rendition(quality, width, height, frameRate, capped, bitrate, 0, bitrate, bitrate * 2,
+                BASE_CRF + tuning.crfOffset(), tuning.preset(), Rendition.H264);
+    }
+
+    private Rendition withCodec(Rendition base, String codec, CodecProfile profile) {
+        int bitrate = (int) (base.videoBitrateKbps() * profile.bitrateFactor());
+        return new Rendition(base.quality() + "_" + codec, base.width(), base.height(), base.frameRate(),
+                base.frameRateCapped(), bitrate, 0, bitrate, bitrate * 2, base.crf() + profile.crfOffset(),
+                profile.presets().getOrDefault(base.preset(), base.preset()), codec);
+    }
+
+    private int even(double value) {
+        int rounded = (int) Math.round(value);
+        return Math.max(2, rounded - rounded % 2);
+    }
+}
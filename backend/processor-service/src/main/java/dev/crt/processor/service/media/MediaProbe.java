@@ -0,0 +1,27 @@
+package dev.crt.processor.service.media;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+public record MediaProbe(
+        double duration,
+        int width,
+        int height,
+        double frameRate,
+        String videoCodec,
+        long videoBitrateKbps,
+        String audioCodec,
+        int audioChannels
+){
+    public boolean hasAudio() {
+        return audioCodec != null;
+    }
+
+    @JsonIgnore
+    public boolean isPortrait() {
+        return height > width;
+    }
+
+    public int shortSide() {
+        return Math.min(width, height);
+    }
+}
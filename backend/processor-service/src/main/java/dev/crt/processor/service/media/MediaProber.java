@@ -0,0 +1,110 @@
+package dev.crt.processor.service.media;
+
+import com.github.kokorin.jaffree.Rational;
+import com.github.kokorin.jaffree.StreamType;
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.github.kokorin.jaffree.ffprobe.Format;
+import com.github.kokorin.jaffree.ffprobe.SideData;
+import com.github.kokorin.jaffree.ffprobe.Stream;
+import dev.crt.processor.service.supervisor.FFmpegSupervisor;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+@Component
+public class MediaProber {
+
+    private final FFmpegSupervisor supervisor;
+
+    public MediaProber(FFmpegSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    // Runs before the video is scheduled, since its duration decides the queue position, so the supervisor's
+    // deadline is what bounds it: the duration is not known yet and only the minimum applies
+    public MediaProbe probe(UUID videoId, Path input) {
+        FFprobeResult result = supervisor.probe(videoId, supervisor.ffprobe()
+                .setInput(input)
+                .setShowFormat(true)
+                .setShowStreams(true)
+                .addArguments("-v", "error"), 0);
+
+        Format format = result.getFormat();
+        if (format == null || format.getDuration() == null) {
+            throw new IllegalStateException("FFprobe failed to parse duration for: " + input.getFileName());
+        }
+
+        Stream video = null;
+        Stream audio = null;
+        for (Stream stream : result.getStreams()) {
+            if (video == null && stream.getCodecType() == StreamType.VIDEO && !isAttachedPicture(stream)) {
+                video = stream;
+            } else if (audio == null && stream.getCodecType() == StreamType.AUDIO) {
+                audio = stream;
+            }
+        }
+
+        if (video == null || video.getWidth() == null || video.getHeight() == null) {
+            throw new IllegalStateException("No video stream found in: " + input.getFileName());
+        }
+
+        // Display size: apply the sample aspect ratio and any 90-degree rotation phones record as metadata
+        int width = video.getWidth();
+        int height = video.getHeight();
+        Rational sar = video.getSampleAspectRatio();
+        if (sar != null && sar.getNumerator() > 0 && sar.getDenominator() > 0 && !sar.equals(Rational.ONE)) {
+            width = Math.toIntExact(Math.round(width * sar.doubleValue()));
+        }
+        if (Math.abs(rotation(video)) % 180 == 90) {
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+
+        long videoBitrate = video.getBitRate() != null ? video.getBitRate() : 0;
+        if (videoBitrate == 0 && format.getBitRate() != null) {
+            videoBitrate = format.getBitRate();
+        }
+
+        return new MediaProbe(
+                format.getDuration().doubleValue(),
+                width,
+                height,
+                frameRate(video),
+                video.getCodecName(),
+                videoBitrate / 1000,
+                audio != null ? audio.getCodecName() : null,
+                audio != null && audio.getChannels() != null ? audio.getChannels() : 0
+        );
+    }
+
+    private boolean isAttachedPicture(Stream stream) {
+        return stream.getDisposition() != null
+                && stream.getDisposition().getAttachedPic() != null
+                && stream.getDisposition().getAttachedPic();
+    }
+
+    private double frameRate(Stream video) {
+        Rational rate = video.getAvgFrameRate();
+        if (rate == null || rate.getNumerator() == 0 || rate.getDenominator() == 0) {
+            rate = video.getRFrameRate();
+        }
+        if (rate == null || rate.getNumerator() == 0 || rate.getDenominator() == 0) {
+            return 0;
+        }
+        return rate.doubleValue();
+    }
+
+    private int rotation(Stream video) {
+        if (video.getSideDataList() != null) {
+            for (SideData sideData : video.getSideDataList()) {
+                if (sideData.getRotation() != null) {
+                    return sideData.getRotation();
+                }
+            }
+        }
+        Long rotate = video.getTagLong("rotate");
+        return rotate != null ? rotate.intValue() : 0;
+    }
+}
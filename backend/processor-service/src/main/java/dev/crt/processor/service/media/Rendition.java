@@ -0,0 +1,56 @@
+package dev.crt.processor.service.media;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.Locale;
+
+public record Rendition(
+        String quality,
+        int width,
+        int height,
+        double frameRate,
+        boolean frameRateCapped,
+        int videoBitrateKbps,
+        int audioBitrateKbps,
+        int maxBitrateKbps,
+        int bufferSizeKbps,
+        int crf,
+        String preset,
+        String codec
+){
+    public static final String H264 = "h264";
+    public static final String HEVC = "hevc";
+    public static final String AV1 = "av1";
+    public static final String AAC = "aac";
+
+    // The shared audio-only rendition; video renditions have an audio bitrate of 0 since audio is encoded once
+    public static Rendition audio(int bitrateKbps) {
+        return new Rendition("audio", 0, 0, 0, false, 0, bitrateKbps, 0, 0, 0, null, AAC);
+    }
+
+    @JsonIgnore
+    public boolean isAudio() {
+        return AAC.equals(codec);
+    }
+
+    // Video and audio together, e.g. to weigh renditions against each other
+    @JsonIgnore
+    public int bitrateKbps() {
+        return videoBitrateKbps + audioBitrateKbps;
+    }
+
+    // H.264 renditions are the fallback every client plays; the others are optional extras for capable clients
+    @JsonIgnore
+    public boolean isH264() {
+        return H264.equals(codec);
+    }
+
+    // Video filter that takes a decoded source frame to this rung; the frame rate is only touched when capped
+    public String filter() {
+        String filter = "scale=" + width + ":" + height + ",setsar=1";
+        if (frameRateCapped) {
+            filter += ",fps=" + String.format(Locale.ROOT, "%.3f", frameRate);
+        }
+        return filter;
+    }
+}
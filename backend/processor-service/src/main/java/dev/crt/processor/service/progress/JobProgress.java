@@ -0,0 +1,15 @@
+package dev.crt.processor.service.progress;
+
+import java.util.List;
+import java.util.UUID;
+
+public record JobProgress(
+        UUID videoId,
+        double percent,
+        Double etaSeconds,
+        double elapsedSeconds,
+        double fps,
+        double speed,
+        long bytes,
+        List<RenditionProgress> renditions
+){}
@@ -0,0 +1,12 @@
+package dev.crt.processor.service.progress;
+
+public record RenditionProgress(
+        String quality,
+        double percent,
+        Double etaSeconds,
+        double elapsedSeconds,
+        double fps,
+        double speed,
+        long bytes,
+        boolean done
+){}
@@ -0,0 +1,305 @@
+package dev.crt.processor.service.progress;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpegProgress;
+import com.github.kokorin.jaffree.ffmpeg.ProgressListener;
+import dev.crt.processor.service.kafka.events.VideoProcessProgressEvent;
+import dev.crt.processor.service.kafka.producer.KafkaPublisher;
+import dev.crt.processor.service.media.Rendition;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+// Collects FFmpeg progress callbacks per transcoding job and rendition. Exposes them as metrics and a
+// REST snapshot, and publishes a throttled progress event per job on video.process.progress.
+@Component
+public class TranscodeProgressTracker {
+
+    public static final String PROGRESS_TOPIC = "video.process.progress";
+
+    private final KafkaPublisher kafkaPublisher;
+    private final MeterRegistry registry;
+    private final Map<UUID, Job> jobs = new ConcurrentHashMap<>();
+
+    @Value("${processor.progress.publish-interval-ms:5000}")
+    private long publishIntervalMs;
+
+    public TranscodeProgressTracker(KafkaPublisher kafkaPublisher, MeterRegistry registry) {
+        this.kafkaPublisher = kafkaPublisher;
+        this.registry = registry;
+
+        Gauge.builder("processor.transcode.jobs.active", jobs, Map::size)
+                .description("Transcoding jobs with progress being tracked")
+                .register(registry);
+        Gauge.builder("processor.transcode.fps", this, t -> t.activeRunsSum(run -> run.fps))
+                .description("Frames per second encoded across all running FFmpeg processes")
+                .register(registry);
+        Gauge.builder("processor.transcode.speed", this, t -> t.activeRunsSum(run -> run.speed))
+                .description("Seconds of media encoded per wall-clock second across all running FFmpeg processes")
+                .register(registry);
+    }
+
+    public void startJob(UUID videoId, double duration, List<Rendition> ladder) {
+        Job job = new Job(videoId, false);
+        for (Rendition rendition : ladder) {
+            job.quality(rendition.quality()).totalSeconds = duration;
+        }
+        jobs.put(videoId, job);
+    }
+
+    // Renditions reused from an earlier attempt count as finished work
+    public void resumed(UUID videoId, String quality) {
+        Job job = jobs.get(videoId);
+        if (job == null) {
+            return;
+        }
+        synchronized (job) {
+            QualityState state = job.quality(quality);
+            state.doneSeconds = state.totalSeconds;
+        }
+    }
+
+    public void finishJob(UUID videoId) {
+        jobs.remove(videoId);
+    }
+
+    // A run is one FFmpeg process encoding some renditions over mediaSeconds of the source. Runs of distributed
+    // chunk tasks open an implicit job that only covers this instance's share and ends with its last run.
+    public Run startRun(UUID videoId, List<Rendition> renditions, double mediaSeconds) {
+        Job job = jobs.computeIfAbsent(videoId, id -> new Job(id, true));
+        Run run = new Run(job, renditions, mediaSeconds);
+
+        synchronized (job) {
+            for (Rendition rendition : renditions) {
+                QualityState state = job.quality(rendition.quality());
+                if (job.implicit) {
+                    state.totalSeconds += mediaSeconds;
+                }
+                if (state.startedAt == 0) {
+                    state.startedAt = run.startedAt;
+                }
+            }
+            job.runs.add(run);
+        }
+        return run;
+    }
+
+    public void finishRun(Run run, boolean completed) {
+        Job job = run.job;
+        long elapsedNanos = System.nanoTime() - run.startedAt;
+
+        synchronized (job) {
+            job.runs.remove(run);
+            if (completed) {
+                for (Rendition rendition : run.renditions) {
+                    QualityState state = job.quality(rendition.quality());
+                    state.doneSeconds = Math.min(state.totalSeconds, state.doneSeconds + run.mediaSeconds);
+                    state.bytes += run.bytesOf(rendition);
+                    state.finishedAt = System.nanoTime();
+                }
+            }
+        }
+        if (job.implicit && job.runs.isEmpty()) {
+            jobs.remove(job.videoId, job);
+        }
+
+        if (completed) {
+            String qualities = run.renditions.stream().map(Rendition::quality).collect(Collectors.joining("+"));
+            Timer.builder("processor.transcode.run")
+                    .description("Wall-clock time of one FFmpeg run, by the renditions it encoded")
+                    .tag("renditions", qualities)
+                    .register(registry)
+                    .record(Duration.ofNanos(elapsedNanos));
+
+            for (Rendition rendition : run.renditions) {
+                Counter.builder("processor.transcode.bytes")
+                        .description("Bytes written per rendition")
+                        .tag("quality", rendition.quality())
+                        .register(registry)
+                        .increment(run.bytesOf(rendition));
+            }
+        }
+    }
+
+    public List<JobProgress> snapshot() {
+        return jobs.values().stream().map(this::snapshot).toList();
+    }
+
+    public Optional<JobProgress> snapshot(UUID videoId) {
+        return Optional.ofNullable(jobs.get(videoId)).map(this::snapshot);
+    }
+
+    private JobProgress snapshot(Job job) {
+        synchronized (job) {
+            long now = System.nanoTime();
+            List<RenditionProgress> renditions = new ArrayList<>();
+            double processedTotal = 0;
+            double workTotal = 0;
+            long bytesTotal = 0;
+
+            for (Map.Entry<String, QualityState> entry : job.qualities.entrySet()) {
+                String quality = entry.getKey();
+                QualityState state = entry.getValue();
+
+                double processed = state.doneSeconds;
+                double fps = 0;
+                double speed = 0;
+                long bytes = state.bytes;
+                boolean active = false;
+                for (Run run : job.runs) {
+                    Rendition rendition = run.rendition(quality);
+                    if (rendition != null) {
+                        processed += run.processedSeconds;
+                        fps += run.fps;
+                        speed += run.speed;
+                        bytes += run.bytesOf(rendition);
+                        active = true;
+                    }
+                }
+                processed = Math.min(processed, state.totalSeconds);
+
+                boolean done = !active && state.totalSeconds > 0 && processed >= state.totalSeconds;
+                Double eta = done ? Double.valueOf(0) : speed > 0 ? (state.totalSeconds - processed) / speed : null;
+                long endedAt = done && state.finishedAt > 0 ? state.finishedAt : now;
+                double elapsed = state.startedAt == 0 ? 0 : (endedAt - state.startedAt) / 1e9;
+
+                renditions.add(new RenditionProgress(quality, percent(processed, state.totalSeconds), eta, elapsed,
+                        fps, speed, bytes, done));
+
+                processedTotal += processed;
+                workTotal += state.totalSeconds;
+                bytesTotal += bytes;
+            }
+
+            double percent = percent(processedTotal, workTotal);
+            double elapsed = (now - job.startedAt) / 1e9;
+            // Jobs run their renditions in phases, so the job ETA extrapolates from overall progress so far
+            Double eta = percent > 0 ? elapsed * (100 - percent) / percent : null;
+            double fps = job.runs.stream().mapToDouble(run -> run.fps).sum();
+            double speed = job.runs.stream().mapToDouble(run -> run.speed).sum();
+
+            return new JobProgress(job.videoId, percent, eta, elapsed, fps, speed, bytesTotal, renditions);
+        }
+    }
+
+    private void publishIfDue(Job job) {
+        synchronized (job) {
+            long now = System.currentTimeMillis();
+            if (now - job.lastPublishedAt < publishIntervalMs) {
+                return;
+            }
+            job.lastPublishedAt = now;
+        }
+
+        kafkaPublisher.sendEvent(PROGRESS_TOPIC, job.videoId.toString(),
+                        new VideoProcessProgressEvent(job.videoId, "PROGRESS", snapshot(job)))
+                .subscribe(null, e -> System.err.println("Could not publish progress of video " + job.videoId + ": " + e.getMessage()));
+    }
+
+    private double activeRunsSum(ToDoubleFunction<Run> metric) {
+        return jobs.values().stream()
+                .flatMap(job -> {
+                    synchronized (job) {
+                        return new ArrayList<>(job.runs).stream();
+                    }
+                })
+                .mapToDouble(metric)
+                .sum();
+    }
+
+    private double percent(double processed, double total) {
+        return total > 0 ? Math.min(100, processed * 100 / total) : 0;
+    }
+
+    private static final class Job {
+        private final UUID videoId;
+        private final boolean implicit;
+        private final long startedAt = System.nanoTime();
+        private final Map<String, QualityState> qualities = new LinkedHashMap<>();
+        private final List<Run> runs = new ArrayList<>();
+        private long lastPublishedAt;
+
+        private Job(UUID videoId, boolean implicit) {
+            this.videoId = videoId;
+            this.implicit = implicit;
+        }
+
+        private QualityState quality(String quality) {
+            return qualities.computeIfAbsent(quality, q -> new QualityState());
+        }
+    }
+
+    private static final class QualityState {
+        private double totalSeconds;
+        private double doneSeconds;
+        private long bytes;
+        private long startedAt;
+        private long finishedAt;
+    }
+
+    public final class Run implements ProgressListener {
+        private final Job job;
+        private final List<Rendition> renditions;
+        private final double mediaSeconds;
+        private final long startedAt = System.nanoTime();
+        private final int totalBitrate;
+
+        private volatile double processedSeconds;
+        private volatile double fps;
+        private volatile double speed;
+        private volatile long bytes;
+
+        private Run(Job job, List<Rendition> renditions, double mediaSeconds) {
+            this.job = job;
+            this.renditions = renditions;
+            this.mediaSeconds = mediaSeconds;
+            this.totalBitrate = renditions.stream().mapToInt(Rendition::bitrateKbps).sum();
+        }
+
+        @Override
+        public void onProgress(FFmpegProgress progress) {
+            // Frame counts are independent of output timestamp offsets, so chunk runs report correctly too
+            double frameRate = renditions.get(0).frameRate();
+            if (progress.getFrame() != null && frameRate > 0) {
+                processedSeconds = Math.min(mediaSeconds, progress.getFrame() / frameRate);
+            } else if (progress.getTimeMillis() != null) {
+                processedSeconds = Math.min(mediaSeconds, progress.getTimeMillis() / 1000.0);
+            }
+            fps = progress.getFps() != null ? progress.getFps() : 0;
+            speed = progress.getSpeed() != null ? progress.getSpeed() : 0;
+            bytes = progress.getSize() != null ? progress.getSize() : 0;
+
+            publishIfDue(job);
+        }
+
+        private Rendition rendition(String quality) {
+            for (Rendition rendition : renditions) {
+                if (rendition.quality().equals(quality)) {
+                    return rendition;
+                }
+            }
+            return null;
+        }
+
+        // FFmpeg reports the size of all outputs together; it is split by each rendition's share of the bitrate
+        private long bytesOf(Rendition rendition) {
+            if (renditions.size() == 1 || totalBitrate == 0) {
+                return bytes / renditions.size();
+            }
+            return bytes * rendition.bitrateKbps() / totalBitrate;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package dev.crt.processor.service.scheduler;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Admits transcoding jobs against a CPU thread budget instead of starting every FFmpeg run at once.
+// Shorter videos go first, but every job ages while it waits so a stream of short uploads cannot starve a long one.
+@Component
+public class TranscodeScheduler {
+
+    private final int capacity;
+    private final int threadsPerJob;
+    private final double maxLoadPerCore;
+    private final double agingFactor;
+    private final long epoch = System.nanoTime();
+
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Waiting lowers every queued job's priority at the same rate, so ordering by priority plus the aged enqueue
+    // time is the same as ordering by priority minus the time waited, and the key never changes in the queue
+    private final PriorityQueue<ScheduledJob<?>> queue = new PriorityQueue<>(
+            Comparator.<ScheduledJob<?>>comparingLong(job -> job.agedPriority)
+                    .thenComparingLong(job -> job.sequence));
+    private int running;
+    private int usedThreads;
+
+    private final Timer waitTimer;
+    private final Timer runTimer;
+
+    public TranscodeScheduler(MeterRegistry registry,
+                              @Value("${processor.scheduler.cores:0}") int cores,
+                              @Value("${processor.scheduler.threads-per-job:4}") int threadsPerJob,
+                              @Value("${processor.scheduler.max-load-per-core:1.5}") double maxLoadPerCore,
+                              @Value("${processor.scheduler.aging-factor:10}") double agingFactor) {
+        this.capacity = cores > 0 ? cores : Runtime.getRuntime().availableProcessors();
+        this.threadsPerJob = Math.max(1, Math.min(threadsPerJob, capacity));
+        this.maxLoadPerCore = maxLoadPerCore;
+        this.agingFactor = Math.max(0, agingFactor);
+
+        Gauge.builder("processor.scheduler.queue.depth", this, s -> s.snapshot()[0])
+                .description("Transcoding jobs waiting for a worker slot")
+                .register(registry);
+        Gauge.builder("processor.scheduler.running", this, s -> s.snapshot()[1])
+                .description("Transcoding jobs currently running")
+                .register(registry);
+        Gauge.builder("processor.scheduler.threads.used", this, s -> s.snapshot()[2])
+                .description("Encoder threads handed out to running jobs")
+                .register(registry);
+        Gauge.builder("processor.scheduler.threads.capacity", this, s -> s.capacity)
+                .register(registry);
+
+        this.waitTimer = Timer.builder("processor.scheduler.wait")
+                .description("Time a job spent queued before it was admitted")
+                .register(registry);
+        this.runTimer = Timer.builder("processor.scheduler.run")
+                .description("Time a job held its worker slot")
+                .register(registry);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getThreadsPerJob() {
+        return threadsPerJob;
+    }
+
+    public <T> Mono<T> submit(UUID videoId, long priority, Function<Integer, Mono<T>> work) {
+        return submit(videoId, priority, threadsPerJob, work);
+    }
+
+    // Lower priority values run first, each millisecond waited counting as aging-factor less; the work function
+    // receives the thread budget it may pass to FFmpeg
+    public <T> Mono<T> submit(UUID videoId, long priority, int threads, Function<Integer, Mono<T>> work) {
+        int budget = Math.max(1, Math.min(threads, capacity));
+
+        return Mono.create(sink -> {
+            ScheduledJob<T> job = new ScheduledJob<>(videoId, priority, budget, sequence.incrementAndGet(), work, sink);
+            job.agedPriority = priority + Math.round((job.enqueuedAt - epoch) / 1e6 * agingFactor);
+            synchronized (this) {
+                queue.add(job);
+            }
+            sink.onCancel(() -> cancel(job));
+            dispatch();
+        });
+    }
+
+    private void dispatch() {
+        List<ScheduledJob<?>> admitted = new ArrayList<>();
+
+        synchronized (this) {
+            while (!queue.isEmpty()) {
+                ScheduledJob<?> next = queue.peek();
+
+                // An idle scheduler always admits one job so a busy neighbour cannot stall the queue forever
+                if (running > 0 && (usedThreads + next.threads > capacity || cpuSaturated())) {
+                    break;
+                }
+
+                queue.poll();
+                running++;
+                usedThreads += next.threads;
+                admitted.add(next);
+            }
+        }
+
+        admitted.forEach(this::start);
+    }
+
+    private <T> void start(ScheduledJob<T> job) {
+        // Cancelled between leaving the queue and getting here: give the slot back without running anything
+        boolean cancelledEarly;
+        synchronized (this) {
+            cancelledEarly = job.cancelled;
+        }
+        if (cancelledEarly) {
+            release(job);
+            return;
+        }
+
+        long startedAt = System.nanoTime();
+        waitTimer.record(Duration.ofNanos(startedAt - job.enqueuedAt));
+
+        System.out.println("Starting transcoding job " + job.videoId + " with " + job.threads + " threads");
+
+        Disposable disposable = Mono.defer(() -> job.work.apply(job.threads))
+                .doFinally(signal -> {
+                    runTimer.record(Duration.ofNanos(System.nanoTime() - startedAt));
+                    release(job);
+                })
+                .subscribe(job.sink::success, job.sink::error, job.sink::success);
+
+        boolean cancelled;
+        synchronized (this) {
+            job.disposable = disposable;
+            cancelled = job.cancelled;
+        }
+        if (cancelled) {
+            disposable.dispose();
+        }
+    }
+
+    private void release(ScheduledJob<?> job) {
+        synchronized (this) {
+            if (job.released) {
+                return;
+            }
+            job.released = true;
+            running--;
+            usedThreads -= job.threads;
+        }
+        dispatch();
+    }
+
+    private void cancel(ScheduledJob<?> job) {
+        Disposable disposable;
+        synchronized (this) {
+            if (queue.remove(job)) {
+                return;
+            }
+            // Admitted but possibly not subscribed yet; start checks the flag
+            job.cancelled = true;
+            disposable = job.disposable;
+        }
+        if (disposable != null) {
+            disposable.dispose();
+        }
+    }
+
+    private boolean cpuSaturated() {
+        double load = os.getSystemLoadAverage();
+        return load >= 0 && load > capacity * maxLoadPerCore;
+    }
+
+    private synchronized int[] snapshot() {
+        return new int[]{queue.size(), running, usedThreads};
+    }
+
+    private static final class ScheduledJob<T> {
+        private final UUID videoId;
+        private final long priority;
+        private final int threads;
+        private final long sequence;
+        private final long enqueuedAt = System.nanoTime();
+        private long agedPriority;
+        private final Function<Integer, Mono<T>> work;
+        private final MonoSink<T> sink;
+        private Disposable disposable;
+        private boolean cancelled;
+        private boolean released;
+
+        private ScheduledJob(UUID videoId, long priority, int threads, long sequence,
+                             Function<Integer, Mono<T>> work, MonoSink<T> sink) {
+            this.videoId = videoId;
+            this.priority = priority;
+            this.threads = threads;
+            this.sequence = sequence;
+            this.work = work;
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package dev.crt.processor.service.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// Playlists on the shared uploads volume are read while they are written; these helpers only ever
+// let readers see the previous version or the complete new one
+final class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    static void write(Path target, List<String> lines) throws IOException {
+        Path tempFile = target.resolveSibling("." + target.getFileName() + ".tmp");
+        Files.write(tempFile, lines, StandardCharsets.UTF_8);
+        move(tempFile, target);
+    }
+
+    static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
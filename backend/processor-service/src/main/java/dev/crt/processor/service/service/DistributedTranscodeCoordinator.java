@@ -0,0 +1,195 @@
+package dev.crt.processor.service.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.crt.processor.service.exception.TranscodeAbortedException;
+import dev.crt.processor.service.kafka.events.VideoChunkTaskEvent;
+import dev.crt.processor.service.kafka.producer.KafkaPublisher;
+import dev.crt.processor.service.media.MediaProbe;
+import dev.crt.processor.service.media.Rendition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+// Fans a long video out as chunk tasks on Kafka so every processor instance can work on it.
+// Coordination state lives next to the video on the shared uploads volume: the chunk plan,
+// one marker per finished chunk, and lock files that make assembly and failure reporting happen once.
+@Service
+public class DistributedTranscodeCoordinator {
+
+    public static final String TASK_TOPIC = "video.chunk.task";
+
+    private static final String STATE_FOLDER = ".distributed";
+    private static final String PLAN_FILE = "plan.json";
+    private static final String ASSEMBLED_MARKER = "assembled";
+    private static final String FAILED_MARKER = "failed";
+
+    private final VideoProcessor processor;
+    private final KafkaPublisher kafkaPublisher;
+    private final ObjectMapper mapper;
+    private final Path rootPath = Paths.get("uploads");
+
+    // The plan keeps the probe and ladder so the assembling instance can report them without probing again
+    private record Plan(MediaProbe probe, List<Rendition> ladder, List<KeyframeChunker.Chunk> chunks) {}
+
+    @Value("${processor.distributed.enabled:false}")
+    private boolean enabled;
+
+    @Value("${processor.chunking.threads-per-chunk:3}")
+    private int threadsPerChunk;
+
+    public DistributedTranscodeCoordinator(VideoProcessor processor, KafkaPublisher kafkaPublisher, ObjectMapper mapper) {
+        this.processor = processor;
+        this.kafkaPublisher = kafkaPublisher;
+        this.mapper = mapper;
+    }
+
+    public boolean shouldDistribute(double duration) {
+        return enabled && processor.isChunked(duration);
+    }
+
+    public int getThreadsPerChunk() {
+        return threadsPerChunk;
+    }
+
+    public Mono<Void> fanOut(UUID videoId, String videoUrl, MediaProbe probe, List<Rendition> ladder) {
+        Path stateFolder = stateFolder(videoUrl);
+
+        return Mono.fromCallable(() -> {
+                    // A redelivered event reuses a plan that is still in progress instead of restarting finished chunks
+                    if (Files.exists(stateFolder.resolve(PLAN_FILE))
+                            && !Files.exists(stateFolder.resolve(FAILED_MARKER))
+                            && !Files.exists(stateFolder.resolve(ASSEMBLED_MARKER))) {
+                        return readPlan(stateFolder);
+                    }
+                    deleteRecursively(stateFolder);
+                    return null;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .switchIfEmpty(Mono.defer(() -> processor.planChunks(videoId, videoUrl, probe.duration(), ladder)
+                        .flatMap(chunks -> Mono.fromCallable(() -> {
+                            Plan plan = new Plan(probe, ladder, chunks);
+                            Files.createDirectories(stateFolder);
+                            mapper.writeValue(stateFolder.resolve(PLAN_FILE).toFile(), plan);
+                            return plan;
+                        }).subscribeOn(Schedulers.boundedElastic()))))
+                .flatMapMany(plan -> {
+                    List<KeyframeChunker.Chunk> chunks = plan.chunks();
+                    System.out.println("Fanning out " + videoId + " as " + chunks.size() + " chunk tasks");
+
+                    return Flux.fromIterable(chunks)
+                            .filter(chunk -> !Files.exists(doneMarker(stateFolder, chunk.index())))
+                            .concatMap(chunk -> kafkaPublisher.sendEvent(TASK_TOPIC, videoId + ":" + chunk.index(),
+                                    new VideoChunkTaskEvent(videoId, videoUrl, plan.ladder(), chunk.index(), chunks.size(),
+                                            chunk.start(), chunk.end())));
+                })
+                .then();
+    }
+
+    public Mono<Void> runTask(VideoChunkTaskEvent task, int threads) {
+        Path stateFolder = stateFolder(task.videoUrl());
+        KeyframeChunker.Chunk chunk = new KeyframeChunker.Chunk(task.chunkIndex(), task.start(), task.end());
+
+        if (Files.exists(stateFolder.resolve(FAILED_MARKER))) {
+            return Mono.empty();
+        }
+
+        Mono<Void> encode = Files.exists(doneMarker(stateFolder, chunk.index()))
+                ? Mono.empty()
+                : processor.transcodeChunk(task.videoId(), task.videoUrl(), chunk, task.ladder(),
+                        processor.storyboardRendition(task.ladder()), threads)
+                        .then(Mono.fromCallable(() -> Files.write(doneMarker(stateFolder, chunk.index()), new byte[0]))
+                                .subscribeOn(Schedulers.boundedElastic()))
+                        .then();
+
+        return encode
+                .then(Mono.defer(() -> assembleIfComplete(task, stateFolder)))
+                .onErrorResume(e -> {
+                    String errorMessage = e.getMessage() != null ? e.getMessage() : "Unknown error during chunk transcoding.";
+                    System.err.println("Error processing chunk " + task.chunkIndex() + " of video " + task.videoId() + ": " + errorMessage);
+
+                    if (!claim(stateFolder, FAILED_MARKER)) {
+                        return Mono.empty();
+                    }
+                    String errorCode = e instanceof TranscodeAbortedException aborted ? aborted.getErrorCode() : "TRANSCODING_ERROR";
+                    return processor.publishProcessingFailure(task.videoId(), errorCode, errorMessage);
+                });
+    }
+
+    // Whichever instance finishes the last chunk wins the assembled lock, stitches the playlists and reports success
+    private Mono<Void> assembleIfComplete(VideoChunkTaskEvent task, Path stateFolder) {
+        for (int i = 0; i < task.chunkCount(); i++) {
+            if (!Files.exists(doneMarker(stateFolder, i))) {
+                return Mono.empty();
+            }
+        }
+        if (!claim(stateFolder, ASSEMBLED_MARKER)) {
+            return Mono.empty();
+        }
+
+        return Mono.fromCallable(() -> readPlan(stateFolder))
+                .subscribeOn(Schedulers.boundedElastic())
+                // Chunks carry video only; the shared audio rendition is encoded once here, before assembly
+                .flatMap(plan -> processor.transcodeAudio(task.videoId(), task.videoUrl(), plan.probe())
+                        .then(processor.assembleChunks(task.videoId(), task.videoUrl(), plan.chunks(), plan.ladder(),
+                                processor.storyboardRendition(plan.ladder())))
+                        .flatMap(videoUrls -> processor.withMasterPlaylist(task.videoId(), task.videoUrl(), plan.ladder(), videoUrls))
+                        .flatMap(videoUrls -> {
+                            videoUrls.put("duration", processor.formatDuration(plan.probe().duration()));
+                            return processor.publishProcessingSuccess(task.videoId(), videoUrls, plan.probe(), plan.ladder());
+                        }))
+                .then(Mono.fromRunnable(() -> deleteRecursively(stateFolder)).subscribeOn(Schedulers.boundedElastic()))
+                .then();
+    }
+
+    private boolean claim(Path stateFolder, String marker) {
+        try {
+            Files.createFile(stateFolder.resolve(marker));
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create marker " + marker + " in " + stateFolder, e);
+        }
+    }
+
+    private Plan readPlan(Path stateFolder) throws IOException {
+        return mapper.readValue(stateFolder.resolve(PLAN_FILE).toFile(), Plan.class);
+    }
+
+    private Path stateFolder(String videoUrl) {
+        return rootPath.resolve(videoUrl).getParent().resolve(STATE_FOLDER);
+    }
+
+    private Path doneMarker(Path stateFolder, int chunkIndex) {
+        return stateFolder.resolve(String.format("chunk_%03d.done", chunkIndex));
+    }
+
+    private void deleteRecursively(Path folder) {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + path + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Could not clean up " + folder + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package dev.crt.processor.service.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.crt.processor.service.media.Rendition;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Checkpoints finished renditions and chunks next to the video so a redelivered or restarted job
+// only encodes what is missing. Each entry records the rendition it was encoded with and the files
+// it produced, and only counts as done while those files are still there with the same sizes.
+@Component
+public class JobStateStore {
+
+    private static final String STATE_FILE = ".job-state.json";
+
+    public record OutputFile(String path, long size) {}
+
+    public record Checkpoint(Rendition rendition, List<OutputFile> files) {}
+
+    public record JobState(String source, Map<String, Checkpoint> completed) {}
+
+    private final ObjectMapper mapper;
+
+    public JobStateStore(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public synchronized boolean isComplete(Path input, String unit, Rendition rendition) {
+        Checkpoint checkpoint = load(input).completed().get(unit);
+        if (checkpoint == null || !checkpoint.rendition().equals(rendition)) {
+            return false;
+        }
+
+        Path videoFolder = input.getParent().toAbsolutePath();
+        for (OutputFile file : checkpoint.files()) {
+            Path path = videoFolder.resolve(file.path());
+            try {
+                if (!Files.isRegularFile(path) || Files.size(path) != file.size()) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void markComplete(Path input, String unit, Rendition rendition, List<Path> files) throws IOException {
+        Path videoFolder = input.getParent().toAbsolutePath();
+
+        // Files still in the scratch directory are recorded relative to the video folder as well
+        List<OutputFile> outputs = new ArrayList<>();
+        for (Path file : files) {
+            outputs.add(new OutputFile(videoFolder.relativize(file.toAbsolutePath()).toString(), Files.size(file)));
+        }
+
+        JobState state = load(input);
+        state.completed().put(unit, new Checkpoint(rendition, outputs));
+        save(input, state);
+    }
+
+    public synchronized void forget(Path input, List<String> units) throws IOException {
+        JobState state = load(input);
+        units.forEach(state.completed()::remove);
+        save(input, state);
+    }
+
+    // Every regular file of a folder whose name starts with the prefix; dot files are never outputs
+    public List<Path> outputsOf(Path folder, String prefix) throws IOException {
+        try (Stream<Path> paths = Files.list(folder)) {
+            return paths
+                    .filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .filter(path -> path.getFileName().toString().startsWith(prefix))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private JobState load(Path input) {
+        String source = fingerprint(input);
+        Path stateFile = input.getParent().resolve(STATE_FILE);
+
+        if (Files.exists(stateFile)) {
+            try {
+                JobState state = mapper.readValue(stateFile.toFile(), JobState.class);
+                // A replaced source invalidates everything encoded from the previous one
+                if (source.equals(state.source())) {
+                    return new JobState(source, new HashMap<>(state.completed()));
+                }
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable job state " + stateFile + ": " + e.getMessage());
+            }
+        }
+        return new JobState(source, new HashMap<>());
+    }
+
+    // Written to a temp file and renamed so a crash never leaves a half-written manifest behind
+    private void save(Path input, JobState state) throws IOException {
+        Path stateFile = input.getParent().resolve(STATE_FILE);
+        Path tempFile = input.getParent().resolve(STATE_FILE + ".tmp");
+
+        mapper.writeValue(tempFile.toFile(), state);
+        try {
+            Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private String fingerprint(Path input) {
+        try {
+            return Files.size(input) + ":" + Files.getLastModifiedTime(input).toMillis();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package dev.crt.processor.service.service;
+
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.github.kokorin.jaffree.ffprobe.Packet;
+import dev.crt.processor.service.supervisor.FFmpegSupervisor;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// Splits long sources at keyframes so chunks can be encoded independently and stitched back into one playlist
+@Component
+public class KeyframeChunker {
+
+    public record Chunk(int index, double start, double end) {
+        public double duration() {
+            return end - start;
+        }
+
+        public String name() {
+            return String.format("chunk_%03d", index);
+        }
+    }
+
+    private final FFmpegSupervisor supervisor;
+
+    public KeyframeChunker(FFmpegSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    // Reads every video packet of the source, so it runs under the supervisor with a deadline from the duration
+    public List<Chunk> planChunks(UUID videoId, Path input, double duration, double chunkSeconds) {
+        FFprobeResult result = supervisor.probe(videoId, supervisor.ffprobe()
+                .setInput(input)
+                .setSelectStreams("v:0")
+                .setShowEntries("packet=pts_time,flags:format=start_time")
+                .addArguments("-v", "error"), duration);
+
+        double startOffset = result.getFormat() != null && result.getFormat().getStartTime() != null
+                ? result.getFormat().getStartTime()
+                : 0;
+
+        List<Double> boundaries = new ArrayList<>();
+        boundaries.add(0.0);
+
+        double nextCut = chunkSeconds;
+        for (Double keyframe : keyframeTimes(result, startOffset)) {
+            // Leave at least half a chunk for the tail so the last piece is not a sliver
+            if (keyframe >= nextCut && duration - keyframe >= chunkSeconds / 2) {
+                boundaries.add(keyframe);
+                nextCut = keyframe + chunkSeconds;
+            }
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < boundaries.size(); i++) {
+            double end = i + 1 < boundaries.size() ? boundaries.get(i + 1) : duration;
+            chunks.add(new Chunk(i, boundaries.get(i), end));
+        }
+        return chunks;
+    }
+
+    private List<Double> keyframeTimes(FFprobeResult result, double startOffset) {
+        List<Double> times = new ArrayList<>();
+        for (Packet packet : result.getPackets()) {
+            if (packet.getPtsTime() == null || packet.getFlags() == null || !packet.getFlags().contains("K")) {
+                continue;
+            }
+            // Keep millisecond precision, rounded down so the cut never lands after the keyframe itself
+            times.add(Math.floor((packet.getPtsTime() - startOffset) * 1000) / 1000);
+        }
+        times.sort(Double::compare);
+        return times;
+    }
+
+    // Concatenates the per-chunk playlists of one rendition into a single VOD playlist.
+    // Single-file fMP4 chunks keep their byte ranges and each chunk's own init segment map.
+    public void stitchPlaylists(Path qualityFolder, List<Chunk> chunks) throws IOException {
+        List<String> entries = new ArrayList<>();
+        double maxSegment = 0;
+        boolean fragmented = false;
+
+        for (Chunk chunk : chunks) {
+            Path chunkPlaylist = qualityFolder.resolve(chunk.name() + ".m3u8");
+            List<String> pendingTags = new ArrayList<>();
+
+            for (String line : Files.readAllLines(chunkPlaylist, StandardCharsets.UTF_8)) {
+                if (line.startsWith("#EXT-X-MAP:")) {
+                    entries.add(line);
+                    fragmented = true;
+                } else if (line.startsWith("#EXTINF:")) {
+                    pendingTags.add(line);
+                    String value = line.substring("#EXTINF:".length(), line.indexOf(',') > 0 ? line.indexOf(',') : line.length());
+                    maxSegment = Math.max(maxSegment, Double.parseDouble(value));
+                } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                    pendingTags.add(line);
+                } else if (!line.isBlank() && !line.startsWith("#") && !pendingTags.isEmpty()) {
+                    entries.addAll(pendingTags);
+                    entries.add(line);
+                    pendingTags.clear();
+                }
+            }
+        }
+
+        List<String> playlist = new ArrayList<>();
+        playlist.add("#EXTM3U");
+        playlist.add("#EXT-X-VERSION:" + (fragmented ? 7 : 3));
+        playlist.add("#EXT-X-TARGETDURATION:" + (int) Math.ceil(maxSegment));
+        playlist.add("#EXT-X-MEDIA-SEQUENCE:0");
+        playlist.add("#EXT-X-PLAYLIST-TYPE:VOD");
+        if (fragmented) {
+            playlist.add("#EXT-X-INDEPENDENT-SEGMENTS");
+        }
+        playlist.addAll(entries);
+        playlist.add("#EXT-X-ENDLIST");
+
+        AtomicFiles.write(qualityFolder.resolve("index.m3u8"), playlist);
+
+        for (Chunk chunk : chunks) {
+            Files.deleteIfExists(qualityFolder.resolve(chunk.name() + ".m3u8"));
+        }
+    }
+}
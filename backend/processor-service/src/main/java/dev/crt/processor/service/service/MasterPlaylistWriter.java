@@ -0,0 +1,203 @@
+package dev.crt.processor.service.service;
+
+import com.github.kokorin.jaffree.StreamType;
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.github.kokorin.jaffree.ffprobe.Stream;
+import dev.crt.processor.service.media.Rendition;
+import dev.crt.processor.service.supervisor.FFmpegSupervisor;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Writes the multi-variant playlist that lets players switch between renditions.
+// Bandwidths are measured from the segments on disk. Codecs are probed from the first segment, or from the
+// init segment for fragmented MP4. Players skip variants whose CODECS they cannot decode.
+// With a shared audio playlist, variants reference it as an EXT-X-MEDIA group and count its bits and codec too.
+@Component
+public class MasterPlaylistWriter {
+
+    public record Variant(Rendition rendition, Path playlist) {}
+
+    private record Bandwidth(long peak, long average) {}
+
+    private static final Pattern MAP_URI = Pattern.compile("URI=\"([^\"]+)\"");
+    private static final String AUDIO_GROUP = "audio";
+
+    private final FFmpegSupervisor supervisor;
+
+    public MasterPlaylistWriter(FFmpegSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    // audio is the shared audio rendition, null when the video playlists carry their own audio
+    public void write(UUID videoId, Path master, List<Variant> variants, Variant audio) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("#EXTM3U");
+        lines.add("#EXT-X-VERSION:3");
+        // Keyframes are forced at every segment boundary, so each segment decodes on its own
+        lines.add("#EXT-X-INDEPENDENT-SEGMENTS");
+
+        Bandwidth audioBandwidth = new Bandwidth(0, 0);
+        String audioCodecs = "";
+        Path audioPlaylist = audio != null ? audio.playlist() : null;
+        if (audioPlaylist != null) {
+            List<Path> audioSegments = new ArrayList<>();
+            audioBandwidth = measure(audioPlaylist, audioSegments);
+            if (audioBandwidth.average() == 0) {
+                // Nothing to measure yet: count the bitrate the audio was encoded at
+                long bitsPerSecond = audio.rendition().audioBitrateKbps() * 1000L;
+                audioBandwidth = new Bandwidth(bitsPerSecond, bitsPerSecond);
+            }
+            if (!audioSegments.isEmpty()) {
+                audioCodecs = codecs(videoId, audioSegments.get(0));
+            }
+            lines.add("#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"" + AUDIO_GROUP + "\",NAME=\"Default\",DEFAULT=YES,AUTOSELECT=YES,URI=\""
+                    + master.getParent().relativize(audioPlaylist).toString().replace("\\", "/") + "\"");
+        }
+
+        for (Variant variant : variants) {
+            Rendition rendition = variant.rendition();
+            // Init segments first when the playlist has them: media fragments alone carry no codec parameters
+            List<Path> segments = new ArrayList<>();
+            Bandwidth bandwidth = measure(variant.playlist(), segments);
+
+            // A variant's bandwidth covers everything the player fetches for it, the audio group included
+            StringBuilder info = new StringBuilder("#EXT-X-STREAM-INF:")
+                    .append("BANDWIDTH=").append(bandwidth.peak() + audioBandwidth.peak())
+                    .append(",AVERAGE-BANDWIDTH=").append(bandwidth.average() + audioBandwidth.average())
+                    .append(",RESOLUTION=").append(rendition.width()).append("x").append(rendition.height())
+                    .append(",FRAME-RATE=").append(String.format(Locale.ROOT, "%.3f", rendition.frameRate()));
+            if (!segments.isEmpty()) {
+                String codecs = codecs(videoId, segments.get(0));
+                if (!audioCodecs.isEmpty()) {
+                    codecs = codecs.isEmpty() ? audioCodecs : codecs + "," + audioCodecs;
+                }
+                info.append(",CODECS=\"").append(codecs).append("\"");
+            }
+            if (audioPlaylist != null) {
+                info.append(",AUDIO=\"").append(AUDIO_GROUP).append("\"");
+            }
+
+            lines.add(info.toString());
+            lines.add(master.getParent().relativize(variant.playlist()).toString().replace("\\", "/"));
+        }
+
+        // Written last, once every variant it lists is in place
+        AtomicFiles.write(master, lines);
+    }
+
+    // Peak is the busiest single segment, average is the whole rendition, both in bits per second.
+    // Byte-range segments are measured by their range, not by the file that holds them.
+    private Bandwidth measure(Path playlist, List<Path> segments) throws IOException {
+        double totalSeconds = 0;
+        long totalBytes = 0;
+        long peak = 0;
+        Double pendingDuration = null;
+        Long pendingRange = null;
+
+        for (String line : Files.readAllLines(playlist, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#EXT-X-MAP:") && segments.isEmpty()) {
+                Matcher uri = MAP_URI.matcher(line);
+                if (uri.find()) {
+                    segments.add(playlist.getParent().resolve(uri.group(1)));
+                }
+            } else if (line.startsWith("#EXTINF:")) {
+                int comma = line.indexOf(',');
+                pendingDuration = Double.parseDouble(line.substring("#EXTINF:".length(), comma > 0 ? comma : line.length()));
+            } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                String range = line.substring("#EXT-X-BYTERANGE:".length());
+                int at = range.indexOf('@');
+                pendingRange = Long.parseLong(at > 0 ? range.substring(0, at) : range);
+            } else if (!line.isBlank() && !line.startsWith("#") && pendingDuration != null) {
+                Path segment = playlist.getParent().resolve(line.trim());
+                long bytes = pendingRange != null ? pendingRange : Files.size(segment);
+
+                if (!segments.contains(segment)) {
+                    segments.add(segment);
+                }
+                totalSeconds += pendingDuration;
+                totalBytes += bytes;
+                if (pendingDuration > 0) {
+                    peak = Math.max(peak, (long) (bytes * 8 / pendingDuration));
+                }
+                pendingDuration = null;
+                pendingRange = null;
+            }
+        }
+
+        long average = totalSeconds > 0 ? (long) (totalBytes * 8 / totalSeconds) : 0;
+        return new Bandwidth(Math.max(peak, average), average);
+    }
+
+    private String codecs(UUID videoId, Path segment) {
+        FFprobeResult result = supervisor.probe(videoId, supervisor.ffprobe()
+                .setInput(segment)
+                .setShowStreams(true)
+                .addArguments("-v", "error"), 0);
+
+        List<String> codecs = new ArrayList<>();
+        for (Stream stream : result.getStreams()) {
+            if (stream.getCodecType() == StreamType.VIDEO && "h264".equals(stream.getCodecName())) {
+                codecs.add(avc1(stream.getProfile(), stream.getLevel()));
+            } else if (stream.getCodecType() == StreamType.VIDEO && "hevc".equals(stream.getCodecName())) {
+                codecs.add(hvc1(stream.getProfile(), stream.getLevel()));
+            } else if (stream.getCodecType() == StreamType.VIDEO && "av1".equals(stream.getCodecName())) {
+                codecs.add(av01(stream.getProfile(), stream.getLevel(), stream.getPixFmt()));
+            } else if (stream.getCodecType() == StreamType.AUDIO && "aac".equals(stream.getCodecName())) {
+                codecs.add("HE-AAC".equals(stream.getProfile()) ? "mp4a.40.5" : "mp4a.40.2");
+            }
+        }
+        return String.join(",", codecs);
+    }
+
+    // RFC 6381 avc1.PPCCLL: profile_idc, constraint flags and level_idc in hex
+    private String avc1(String profile, Integer level) {
+        int profileIdc;
+        int constraints = 0;
+        switch (profile == null ? "" : profile) {
+            case "Constrained Baseline" -> {
+                profileIdc = 66;
+                constraints = 0xE0;
+            }
+            case "Baseline" -> profileIdc = 66;
+            case "Main" -> profileIdc = 77;
+            case "High 10" -> profileIdc = 110;
+            case "High 4:2:2" -> profileIdc = 122;
+            default -> profileIdc = 100;
+        }
+        int levelIdc = level != null && level > 0 ? level : 40;
+
+        return String.format("avc1.%02x%02x%02x", profileIdc, constraints, levelIdc);
+    }
+
+    // RFC 6381 hvc1.<profile>.<compatibility>.L<level_idc>.B0 for Main tier; ffprobe reports level_idc (level x 30)
+    private String hvc1(String profile, Integer level) {
+        int levelIdc = level != null && level > 0 ? level : 120;
+        if ("Main 10".equals(profile)) {
+            return "hvc1.2.4.L" + levelIdc + ".B0";
+        }
+        return "hvc1.1.6.L" + levelIdc + ".B0";
+    }
+
+    // AV1 codecs string av01.<profile>.<seq_level_idx><tier>.<bit depth>
+    private String av01(String profile, Integer level, String pixelFormat) {
+        int profileIdc = switch (profile == null ? "" : profile) {
+            case "High" -> 1;
+            case "Professional" -> 2;
+            default -> 0;
+        };
+        int levelIdx = level != null && level >= 0 ? level : 8;
+        int bitDepth = pixelFormat != null && pixelFormat.contains("10") ? 10 : 8;
+
+        return String.format("av01.%d.%02dM.%02d", profileIdc, levelIdx, bitDepth);
+    }
+}
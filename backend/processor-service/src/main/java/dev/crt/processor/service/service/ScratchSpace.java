@@ -0,0 +1,155 @@
+package dev.crt.processor.service.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Local working directory for encodes (tmpfs or local NVMe). FFmpeg writes every segment here instead of onto the
+// shared uploads volume; finished folders are then copied next to their destination under a hidden staging
+// name and renamed into place, so the stream service never sees a half-written rendition.
+@Component
+public class ScratchSpace {
+
+    private final Path rootPath = Paths.get("uploads");
+
+    @Value("${processor.scratch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${processor.scratch.dir:${java.io.tmpdir}/processor-scratch}")
+    private Path scratchRoot;
+
+    // Job folders left behind by failed jobs are kept for resuming, but not forever
+    @Value("${processor.scratch.retention-hours:24}")
+    private long retentionHours;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Files.createDirectories(scratchRoot);
+            purgeOlderThan(Duration.ofHours(retentionHours));
+        } catch (IOException e) {
+            System.err.println("Scratch directory " + scratchRoot + " is not usable, encoding in place: " + e.getMessage());
+            enabled = false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Where a video's outputs are encoded: its own folder under the scratch root, or the video folder itself
+    public Path workFolder(Path input) {
+        Path videoFolder = input.getParent();
+        if (!enabled) {
+            return videoFolder;
+        }
+        return scratchRoot.resolve(rootPath.toAbsolutePath().relativize(videoFolder.toAbsolutePath()));
+    }
+
+    // Moves a finished folder from scratch to its destination, replacing what was there with a single rename
+    public void publish(Path source, Path destination) throws IOException {
+        Path staging = destination.resolveSibling("." + destination.getFileName() + ".staging");
+        Path previous = destination.resolveSibling("." + destination.getFileName() + ".previous");
+        deleteRecursively(staging);
+        deleteRecursively(previous);
+
+        try {
+            Files.move(source, staging, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // Different file systems: the copy lands under the hidden staging name, playlists last
+            copyTree(source, staging);
+            deleteRecursively(source);
+        }
+
+        // rename(2) cannot replace a non-empty directory, so the old one is set aside for the instant of the swap
+        if (Files.exists(destination)) {
+            Files.move(destination, previous, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(staging, destination, StandardCopyOption.ATOMIC_MOVE);
+        deleteRecursively(previous);
+    }
+
+    public void discard(Path input) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            deleteRecursively(workFolder(input));
+        } catch (IOException e) {
+            System.err.println("Could not clean scratch folder of " + input + ": " + e.getMessage());
+        }
+    }
+
+    private void copyTree(Path source, Path target) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(source)) {
+            files = paths.sorted(Comparator.comparing((Path path) -> isPlaylist(path)).thenComparing(Comparator.naturalOrder()))
+                    .toList();
+        }
+        for (Path file : files) {
+            Path copy = target.resolve(source.relativize(file).toString());
+            if (Files.isDirectory(file)) {
+                Files.createDirectories(copy);
+            } else {
+                Files.createDirectories(copy.getParent());
+                Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private boolean isPlaylist(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(".m3u8") || name.endsWith(".vtt");
+    }
+
+    private void purgeOlderThan(Duration age) throws IOException {
+        FileTime cutoff = FileTime.from(Instant.now().minus(age));
+        try (Stream<Path> paths = Files.walk(scratchRoot)) {
+            List<Path> stale = paths
+                    .filter(path -> !path.equals(scratchRoot) && Files.isDirectory(path))
+                    .filter(path -> isOlderThan(path, cutoff))
+                    .toList();
+            for (Path folder : stale) {
+                deleteRecursively(folder);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean isOlderThan(Path folder, FileTime cutoff) {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            return paths.allMatch(path -> path.toFile().lastModified() < cutoff.toMillis());
+        } catch (IOException | UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    private void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path entry : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+}
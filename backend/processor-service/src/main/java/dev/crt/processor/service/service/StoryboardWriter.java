@@ -0,0 +1,123 @@
+package dev.crt.processor.service.service;
+
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import dev.crt.processor.service.media.Rendition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Trickplay storyboards: a branch of the transcoding filter graph samples one frame every interval into
+// tiled sprite sheets, and a WebVTT index maps every interval of the timeline to its tile.
+@Component
+public class StoryboardWriter {
+
+    public static final String INDEX_FILE = "storyboard.vtt";
+
+    // One FFmpeg run's sheets: prefix_001.jpg, prefix_002.jpg... covering [start, end) of the source
+    public record Span(String prefix, double start, double end) {}
+
+    @Value("${processor.storyboard.enabled:true}")
+    private boolean enabled;
+
+    @Value("${processor.storyboard.interval-seconds:5}")
+    private double intervalSeconds;
+
+    @Value("${processor.storyboard.tile-width:160}")
+    private int tileWidth;
+
+    @Value("${processor.storyboard.columns:10}")
+    private int columns;
+
+    @Value("${processor.storyboard.rows:10}")
+    private int rows;
+
+    @Value("${processor.storyboard.format:jpg}")
+    private String format;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Filter graph branch producing the sheets of a run over the given seconds of media; the tile aspect ratio
+    // follows the given rendition
+    public String filter(Rendition rendition, double seconds) {
+        int tiles = tiles(seconds);
+        return String.format(Locale.ROOT, "fps=1/%s,scale=%d:%d,tile=%dx%d",
+                intervalSeconds, tileWidth, tileHeight(rendition), sheetColumns(tiles), sheetRows(tiles));
+    }
+
+    public UrlOutput output(Path folder, String prefix) {
+        UrlOutput output = UrlOutput.toPath(folder.resolve(prefix + "_%03d." + format))
+                .setFormat("image2");
+        if ("webp".equals(format)) {
+            return output
+                    .addArguments("-c:v", "libwebp")
+                    .addArguments("-quality", "60");
+        }
+        return output
+                .addArguments("-c:v", "mjpeg")
+                .addArguments("-q:v", "5");
+    }
+
+    public void writeIndex(Path folder, Rendition rendition, List<Span> spans) throws IOException {
+        int tileHeight = tileHeight(rendition);
+
+        List<String> lines = new ArrayList<>();
+        lines.add("WEBVTT");
+
+        for (Span span : spans) {
+            int tiles = tiles(span.end() - span.start());
+            int spanColumns = sheetColumns(tiles);
+            int tilesPerSheet = spanColumns * sheetRows(tiles);
+            for (int tile = 0; tile < tiles; tile++) {
+                String sheet = String.format("%s_%03d.%s", span.prefix(), tile / tilesPerSheet + 1, format);
+                if (!Files.exists(folder.resolve(sheet))) {
+                    break;
+                }
+
+                int position = tile % tilesPerSheet;
+                double cueStart = span.start() + tile * intervalSeconds;
+                double cueEnd = Math.min(span.end(), cueStart + intervalSeconds);
+
+                lines.add("");
+                lines.add(timestamp(cueStart) + " --> " + timestamp(cueEnd));
+                lines.add(String.format("%s#xywh=%d,%d,%d,%d", sheet,
+                        (position % spanColumns) * tileWidth, (position / spanColumns) * tileHeight, tileWidth, tileHeight));
+            }
+        }
+
+        Files.write(folder.resolve(INDEX_FILE), lines, StandardCharsets.UTF_8);
+    }
+
+    private int tiles(double seconds) {
+        return Math.max(1, (int) Math.ceil(seconds / intervalSeconds));
+    }
+
+    // A run with fewer thumbnails than a full sheet gets a grid just big enough for them, so short runs such as
+    // chunks do not write sheets that are mostly padding
+    private int sheetColumns(int tiles) {
+        return Math.min(columns, tiles);
+    }
+
+    private int sheetRows(int tiles) {
+        return Math.min(rows, (tiles + columns - 1) / columns);
+    }
+
+    private int tileHeight(Rendition rendition) {
+        int height = (int) Math.round((double) tileWidth * rendition.height() / rendition.width());
+        return Math.max(2, height - height % 2);
+    }
+
+    private String timestamp(double seconds) {
+        long millis = Math.round(seconds * 1000);
+        return String.format("%02d:%02d:%02d.%03d",
+                millis / 3_600_000, (millis / 60_000) % 60, (millis / 1000) % 60, millis % 1000);
+    }
+}
@@ -1,126 +1,834 @@
 package dev.crt.processor.service.service;
 
 import com.github.kokorin.jaffree.LogLevel;
-import com.github.kokorin.jaffree.StreamType;
 import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
 import com.github.kokorin.jaffree.ffmpeg.UrlInput;
 import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
-import com.github.kokorin.jaffree.ffprobe.FFprobe;
-import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
 import dev.crt.processor.service.kafka.events.*;
 import dev.crt.processor.service.kafka.producer.KafkaPublisher;
+import dev.crt.processor.service.media.ComplexityAnalyzer;
+import dev.crt.processor.service.media.EncodingLadder;
+import dev.crt.processor.service.media.MediaProbe;
+import dev.crt.processor.service.media.MediaProber;
+import dev.crt.processor.service.media.Rendition;
+import dev.crt.processor.service.exception.TranscodeAbortedException;
+import dev.crt.processor.service.progress.TranscodeProgressTracker;
+import dev.crt.processor.service.supervisor.FFmpegSupervisor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 @Service
 public class VideoProcessor {
 
+    private static final int HLS_SEGMENT_SECONDS = 8;
+    private static final String SPRITE_PREFIX = "sprite";
+
     private final KafkaPublisher kafkaPublisher;
+    private final KeyframeChunker chunker;
+    private final MediaProber prober;
+    private final EncodingLadder encodingLadder;
+    private final ComplexityAnalyzer complexityAnalyzer;
+    private final JobStateStore jobState;
+    private final TranscodeProgressTracker progress;
+    private final MasterPlaylistWriter masterPlaylistWriter;
+    private final StoryboardWriter storyboardWriter;
+    private final FFmpegSupervisor supervisor;
+    private final ScratchSpace scratch;
     private final Path rootPath = Paths.get("uploads");
 
-    public VideoProcessor(KafkaPublisher kafkaPublisher) {
+    @Value("${processor.transcode.single-decode:true}")
+    private boolean singleDecode;
+
+    @Value("${processor.transcode.keep-mp4:false}")
+    private boolean keepMp4;
+
+    @Value("${processor.transcode.segment-format:ts}")
+    private String segmentFormat;
+
+    @Value("${processor.transcode.progressive:true}")
+    private boolean progressive;
+
+    @Value("${processor.audio.separate:true}")
+    private boolean separateAudio;
+
+    @Value("${processor.audio.bitrate-kbps:128}")
+    private int audioBitrateKbps;
+
+    @Value("${processor.chunking.enabled:true}")
+    private boolean chunkingEnabled;
+
+    @Value("${processor.chunking.min-duration-seconds:600}")
+    private double chunkingMinDuration;
+
+    @Value("${processor.chunking.chunk-seconds:60}")
+    private double chunkSeconds;
+
+    @Value("${processor.chunking.threads-per-chunk:3}")
+    private int chunkThreads;
+
+    public VideoProcessor(KafkaPublisher kafkaPublisher, KeyframeChunker chunker, MediaProber prober,
+                          EncodingLadder encodingLadder, ComplexityAnalyzer complexityAnalyzer, JobStateStore jobState,
+                          TranscodeProgressTracker progress, MasterPlaylistWriter masterPlaylistWriter,
+                          StoryboardWriter storyboardWriter, FFmpegSupervisor supervisor, ScratchSpace scratch) {
         this.kafkaPublisher = kafkaPublisher;
+        this.chunker = chunker;
+        this.prober = prober;
+        this.encodingLadder = encodingLadder;
+        this.complexityAnalyzer = complexityAnalyzer;
+        this.jobState = jobState;
+        this.progress = progress;
+        this.masterPlaylistWriter = masterPlaylistWriter;
+        this.storyboardWriter = storyboardWriter;
+        this.supervisor = supervisor;
+        this.scratch = scratch;
     }
 
-    public Mono<Map<String, String>> processVideo(UUID videoId, String videoPath) {
+    // Files one FFmpeg run writes into a folder, removed again when the run does not complete
+    private record PartialOutputs(Path folder, String prefix) {}
+
+    public Mono<MediaProbe> probe(UUID videoId, String videoPath) {
         Path input = rootPath.resolve(videoPath);
-        Path outputFolder = input.getParent();
-        String baseName = input.getFileName().toString();
-        int dot = baseName.lastIndexOf('.');
-        String nameNoExt = dot > 0 ? baseName.substring(0, dot) : baseName;
 
         if (!Files.exists(input)) {
             return Mono.error(new IllegalArgumentException("Video file not found: " + videoPath));
         }
 
-        Map<String, String> resolutions = Map.of(
-                "1080p", "1920:1080",
-                "720p",  "1280:720",
-                "360p",  "640:360"
-        );
+        return Mono.fromCallable(() -> prober.probe(videoId, input))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Ladder tuned to the content: a short trial encode decides CRF, preset and bitrate caps of every rung.
+    // The trial is an FFmpeg run like any other, so it is called from inside the video's scheduled job.
+    public Mono<List<Rendition>> ladder(UUID videoId, String videoPath, MediaProbe probe, int threads) {
+        Path input = rootPath.resolve(videoPath);
+
+        return Mono.fromCallable(() -> encodingLadder.build(probe, complexityAnalyzer.analyze(videoId, input, probe, threads)))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private boolean isSingleFileFmp4() {
+        return "fmp4-single-file".equals(segmentFormat);
+    }
+
+    public boolean isChunked(double duration) {
+        return chunkingEnabled && duration >= chunkingMinDuration;
+    }
+
+    public Mono<Map<String, String>> processVideo(UUID videoId, String videoPath, MediaProbe probe,
+                                                  List<Rendition> ladder, int threads) {
+        Path input = rootPath.resolve(videoPath);
+
+        if (!Files.exists(input)) {
+            return Mono.error(new IllegalArgumentException("Video file not found: " + videoPath));
+        }
+
+        Mono<Map<String, String>> transcodingMono;
+        if (progressive && ladder.size() > 1) {
+            // The lowest rung is encoded on its own first so the video is watchable long before the full ladder is done.
+            // Trade-off: the preview is its own FFmpeg run, so the source is decoded twice (once for the preview, once
+            // for the remaining rungs) instead of once. Disable processor.transcode.progressive to keep a single decode.
+            List<Rendition> preview = List.of(ladder.get(ladder.size() - 1));
+            List<Rendition> remaining = List.copyOf(ladder.subList(0, ladder.size() - 1));
+
+            transcodingMono = transcode(videoId, videoPath, probe.duration(), preview, storyboardRendition(preview), threads)
+                    .flatMap(previewUrls -> withMasterPlaylist(videoId, videoPath, preview, previewUrls))
+                    .flatMap(previewUrls -> publishRenditionReady(videoId, previewUrls, probe.duration())
+                            .then(transcode(videoId, videoPath, probe.duration(), remaining, null, threads))
+                            .map(urlsMap -> {
+                                urlsMap.putAll(previewUrls);
+
+                                return urlsMap;
+                            }));
+        } else {
+            transcodingMono = transcode(videoId, videoPath, probe.duration(), ladder, storyboardRendition(ladder), threads);
+        }
+
+        Duration jobTimeout = supervisor.jobTimeout(probe.duration(), ladder.size());
+        List<Rendition> tracked = new ArrayList<>(ladder);
+        if (hasSeparateAudio(probe)) {
+            tracked.add(audioRendition());
+        }
+
+        // Audio is encoded first: it is quick, and every variant, the preview included, references it
+        return Mono.fromRunnable(() -> {
+                    supervisor.checkNotCancelled(videoId);
+                    progress.startJob(videoId, probe.duration(), tracked);
+                })
+                .then(transcodeAudio(videoId, input, scratch.workFolder(input), probe))
+                .then(transcodingMono)
+                .flatMap(urlsMap -> withMasterPlaylist(videoId, videoPath, ladder, urlsMap))
+                .map(urlsMap -> {
+                    urlsMap.put("duration", formatDuration(probe.duration()));
+                    // Everything has been published; a failed job keeps its scratch folder so finished chunks can be reused
+                    scratch.discard(input);
+
+                    return urlsMap;
+                })
+                // Disposing the job interrupts its blocked run, which makes the supervisor stop FFmpeg
+                .timeout(jobTimeout)
+                .onErrorMap(TimeoutException.class, e -> new TranscodeAbortedException(TranscodeAbortedException.TIMEOUT,
+                        "Transcoding of video " + videoId + " exceeded " + jobTimeout.toSeconds() + "s"))
+                .doFinally(signal -> {
+                    progress.finishJob(videoId);
+                    supervisor.finishJob(videoId);
+                });
+    }
 
-        Mono<String> durationMono = Mono.fromCallable(() -> {
-            FFprobeResult probeResult = FFprobe.atPath()
-                    .setInput(input)
-                    .addArgument("-show_format")
-                    .addArguments("-v", "error")
-                    .execute();
+    private boolean hasSeparateAudio(MediaProbe probe) {
+        return separateAudio && probe.hasAudio();
+    }
+
+    private Rendition audioRendition() {
+        return Rendition.audio(audioBitrateKbps);
+    }
 
-            com.github.kokorin.jaffree.ffprobe.Format format = probeResult.getFormat();
+    // For distributed jobs, run by the instance that assembles the chunks
+    public Mono<Void> transcodeAudio(UUID videoId, String videoPath, MediaProbe probe) {
+        Path input = rootPath.resolve(videoPath);
+        return transcodeAudio(videoId, input, input.getParent(), probe);
+    }
+
+    // One AAC encode of the source's first audio track into its own HLS rendition, shared by all video variants
+    private Mono<Void> transcodeAudio(UUID videoId, Path input, Path workFolder, MediaProbe probe) {
+        if (!hasSeparateAudio(probe)) {
+            return Mono.empty();
+        }
+        Rendition audio = audioRendition();
 
-            if (format == null || format.getDuration() == null) {
-                throw new IllegalStateException("FFprobe failed to parse duration for: " + input.getFileName());
+        return Mono.<Void>fromCallable(() -> {
+            if (jobState.isComplete(input, audio.quality(), audio)) {
+                progress.resumed(videoId, audio.quality());
+                return null;
             }
 
-            Float duration = format.getDuration();
-            long totalSeconds = duration.longValue();
+            Path audioFolder = prepareRenditionFolder(workFolder, nameWithoutExtension(input), audio.quality());
+            UrlOutput output = UrlOutput.toPath(audioFolder.resolve("index.m3u8"))
+                    .setFormat("hls");
+            hlsOptions(audioFolder.resolve("index.m3u8"), null, isSingleFileFmp4())
+                    .forEach((option, value) -> output.addArguments("-" + option, value));
 
-            return formatDuration(totalSeconds);
+            FFmpeg ffmpeg = supervisor.ffmpeg()
+                    .addInput(UrlInput.fromPath(input))
+                    .addOutput(output
+                            .addArguments("-map", "0:a:0")
+                            .addArgument("-vn")
+                            .addArguments("-c:a", "aac")
+                            .addArguments("-b:a", audio.audioBitrateKbps() + "k"))
+                    .setLogLevel(LogLevel.WARNING);
+
+            execute(ffmpeg, videoId, List.of(audio), probe.duration(), List.of(new PartialOutputs(audioFolder, "")));
+            publish(input, workFolder, List.of(audio), false);
+            return null;
         }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Storyboards ride along with the lowest rung: it is encoded first, and its aspect ratio sizes the tiles
+    public Rendition storyboardRendition(List<Rendition> ladder) {
+        return storyboardWriter.isEnabled() ? ladder.get(ladder.size() - 1) : null;
+    }
+
+    // Renditions checkpointed by an earlier attempt are reused; only the missing ones are encoded
+    private Mono<Map<String, String>> transcode(UUID videoId, String videoPath, double duration, List<Rendition> ladder,
+                                                Rendition storyboard, int threads) {
+        Path input = rootPath.resolve(videoPath);
+        Path workFolder = scratch.workFolder(input);
+        String nameNoExt = nameWithoutExtension(input);
+
+        return Mono.defer(() -> {
+            Map<String, String> resumed = new HashMap<>();
+            List<Rendition> pending = new ArrayList<>();
+            for (Rendition rendition : ladder) {
+                if (jobState.isComplete(input, rendition.quality(), rendition)) {
+                    resumed.put(rendition.quality(), relativeManifestPath(renditionFolder(input, rendition.quality())));
+                    progress.resumed(videoId, rendition.quality());
+                } else {
+                    pending.add(rendition);
+                }
+            }
+
+            if (pending.isEmpty()) {
+                addStoryboard(input, resumed);
+                return Mono.just(resumed);
+            }
+            if (!resumed.isEmpty()) {
+                System.out.println("Resuming " + videoPath + ", reusing renditions " + resumed.keySet());
+            }
+
+            Mono<Map<String, String>> encoding;
+            if (isChunked(duration)) {
+                encoding = transcodeChunked(videoId, input, workFolder, duration, pending, storyboard, threads);
+            } else if (singleDecode) {
+                encoding = transcodeSingleDecode(videoId, input, workFolder, nameNoExt, duration, pending, storyboard, threads);
+            } else {
+                encoding = transcodePerRendition(videoId, input, workFolder, nameNoExt, duration, pending, storyboard, threads);
+            }
+
+            return encoding.map(urlsMap -> {
+                urlsMap.putAll(resumed);
+
+                return urlsMap;
+            });
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Decodes the source once and feeds every rendition's encoder from a split/scale filter graph
+    private Mono<Map<String, String>> transcodeSingleDecode(UUID videoId, Path input, Path workFolder, String nameNoExt,
+                                                            double duration, List<Rendition> ladder, Rendition storyboard,
+                                                            int threads) {
+        return Mono.fromCallable(() -> {
+            int encoderThreads = Math.max(1, threads / ladder.size());
+
+            FFmpeg ffmpeg = supervisor.ffmpeg()
+                    .addInput(decoderInput(input, threads))
+                    .setComplexFilter(splitScaleGraph(ladder, storyboard, duration))
+                    .setLogLevel(LogLevel.WARNING);
+
+            List<PartialOutputs> partialOutputs = new ArrayList<>();
+            Map<String, String> manifests = new HashMap<>();
+            for (int i = 0; i < ladder.size(); i++) {
+                Rendition rendition = ladder.get(i);
+                String quality = rendition.quality();
+                Path qualityFolder = prepareRenditionFolder(workFolder, nameNoExt, quality);
+                Path mp4 = keepMp4 && rendition.isH264() ? qualityFolder.resolve(nameNoExt + "_" + quality + ".mp4") : null;
+
+                ffmpeg.addOutput(hlsOutput(qualityFolder.resolve("index.m3u8"), null, mp4, rendition, encoderThreads)
+                        .addArguments("-map", "[v" + i + "]"));
+
+                manifests.put(quality, relativeManifestPath(renditionFolder(input, quality)));
+                partialOutputs.add(new PartialOutputs(qualityFolder, ""));
+            }
+
+            if (storyboard != null) {
+                ffmpeg.addOutput(storyboardWriter.output(prepareStoryboardFolder(workFolder, input), SPRITE_PREFIX)
+                        .addArguments("-map", "[sb]"));
+                partialOutputs.add(new PartialOutputs(storyboardFolder(workFolder, input), SPRITE_PREFIX));
+            }
+
+            execute(ffmpeg, videoId, ladder, duration, partialOutputs);
+
+            if (storyboard != null) {
+                storyboardWriter.writeIndex(storyboardFolder(workFolder, input), storyboard,
+                        List.of(new StoryboardWriter.Span(SPRITE_PREFIX, 0, duration)));
+            }
+            publish(input, workFolder, ladder, storyboard != null);
+            addStoryboard(input, manifests);
+
+            return manifests;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Long sources: keyframe-aligned chunks are encoded concurrently, then each rendition's chunk playlists are stitched
+    private Mono<Map<String, String>> transcodeChunked(UUID videoId, Path input, Path workFolder, double duration,
+                                                       List<Rendition> ladder, Rendition storyboard, int threads) {
+        int parallelism = Math.max(1, threads / chunkThreads);
+
+        return planChunks(videoId, input, workFolder, duration, ladder)
+                .flatMap(chunks -> {
+                    System.out.println("Transcoding " + input + " in " + chunks.size() + " chunks, " + parallelism + " at a time");
+
+                    return Flux.fromIterable(chunks)
+                            .flatMap(chunk -> Mono.fromCallable(() -> isChunkComplete(input, chunk, ladder))
+                                    .subscribeOn(Schedulers.boundedElastic())
+                                    .flatMap(complete -> complete
+                                            ? Mono.<Void>empty()
+                                            : transcodeChunk(videoId, input, workFolder, chunk, ladder, storyboard, chunkThreads)
+                                                    .then(Mono.<Void>fromRunnable(() -> checkpointChunk(input, workFolder, chunk, ladder))
+                                                            .subscribeOn(Schedulers.boundedElastic()))), parallelism)
+                            .then(assembleChunks(videoId, input, workFolder, chunks, ladder, storyboard))
+                            .flatMap(manifests -> Mono.fromCallable(() -> {
+                                publish(input, workFolder, ladder, storyboard != null);
+                                addStoryboard(input, manifests);
+
+                                // Stitched renditions are checkpointed as a whole and replace their chunk entries
+                                List<String> chunkUnits = new ArrayList<>();
+                                for (Rendition rendition : ladder) {
+                                    chunks.forEach(chunk -> chunkUnits.add(chunkUnit(rendition, chunk)));
+                                }
+                                jobState.forget(input, chunkUnits);
+
+                                return manifests;
+                            }).subscribeOn(Schedulers.boundedElastic()));
+                });
+    }
+
+    private boolean isChunkComplete(Path input, KeyframeChunker.Chunk chunk, List<Rendition> ladder) {
+        return ladder.stream().allMatch(rendition -> jobState.isComplete(input, chunkUnit(rendition, chunk), rendition));
+    }
+
+    private void checkpointChunk(Path input, Path workFolder, KeyframeChunker.Chunk chunk, List<Rendition> ladder) {
+        try {
+            for (Rendition rendition : ladder) {
+                Path qualityFolder = renditionFolder(workFolder, input, rendition.quality());
+                // chunk_003.m3u8 and chunk_003.mp4 or chunk_003_0000.ts..., never chunk_0030
+                List<Path> files = new ArrayList<>(jobState.outputsOf(qualityFolder, chunk.name() + "_"));
+                files.addAll(jobState.outputsOf(qualityFolder, chunk.name() + "."));
+
+                jobState.markComplete(input, chunkUnit(rendition, chunk), rendition, files);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkpointRendition(Path input, Rendition rendition) throws IOException {
+        Path qualityFolder = renditionFolder(input, rendition.quality());
+        jobState.markComplete(input, rendition.quality(), rendition, jobState.outputsOf(qualityFolder, ""));
+    }
+
+    // Moves finished renditions, and the storyboard they sampled, from the work folder into the video folder.
+    // Each folder appears complete in one rename; the renditions are checkpointed where they ended up.
+    private void publish(Path input, Path workFolder, List<Rendition> renditions, boolean withStoryboard) throws IOException {
+        if (!workFolder.equals(input.getParent())) {
+            for (Rendition rendition : renditions) {
+                scratch.publish(renditionFolder(workFolder, input, rendition.quality()), renditionFolder(input, rendition.quality()));
+            }
+            if (withStoryboard) {
+                scratch.publish(storyboardFolder(workFolder, input), storyboardFolder(input));
+            }
+        }
+        for (Rendition rendition : renditions) {
+            checkpointRendition(input, rendition);
+        }
+    }
+
+    private String chunkUnit(Rendition rendition, KeyframeChunker.Chunk chunk) {
+        return rendition.quality() + "/" + chunk.name();
+    }
+
+    // Prepares the rendition folders and plans the keyframe-aligned chunks of a long source.
+    // Distributed chunk tasks work in the video folder itself, since another instance assembles them.
+    public Mono<List<KeyframeChunker.Chunk>> planChunks(UUID videoId, String videoPath, double duration,
+                                                        List<Rendition> ladder) {
+        Path input = rootPath.resolve(videoPath);
+        return planChunks(videoId, input, input.getParent(), duration, ladder);
+    }
+
+    private Mono<List<KeyframeChunker.Chunk>> planChunks(UUID videoId, Path input, Path workFolder, double duration,
+                                                         List<Rendition> ladder) {
+        return Mono.fromCallable(() -> {
+            for (Rendition rendition : ladder) {
+                prepareRenditionFolder(workFolder, nameWithoutExtension(input), rendition.quality());
+            }
+            return chunker.planChunks(videoId, input, duration, chunkSeconds);
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
 
-        Mono<Map<String, String>> transcodingMono = Flux.fromIterable(resolutions.entrySet())
-                .flatMap(entry ->
+    public Mono<Void> transcodeChunk(UUID videoId, String videoPath, KeyframeChunker.Chunk chunk, List<Rendition> ladder,
+                                     Rendition storyboard, int threads) {
+        Path input = rootPath.resolve(videoPath);
+        return transcodeChunk(videoId, input, input.getParent(), chunk, ladder, storyboard, threads);
+    }
+
+    private Mono<Void> transcodeChunk(UUID videoId, Path input, Path workFolder, KeyframeChunker.Chunk chunk,
+                                      List<Rendition> ladder, Rendition storyboard, int threads) {
+        return Mono.<Void>fromCallable(() -> {
+            int encoderThreads = Math.max(1, threads / ladder.size());
+
+            FFmpeg ffmpeg = supervisor.ffmpeg()
+                    .addInput(decoderInput(input, threads)
+                            .setPosition((long) (chunk.start() * 1000))
+                            .setDuration((long) (chunk.duration() * 1000)))
+                    .setComplexFilter(splitScaleGraph(ladder, storyboard, chunk.duration()))
+                    .setLogLevel(LogLevel.WARNING);
+
+            List<PartialOutputs> partialOutputs = new ArrayList<>();
+            for (int i = 0; i < ladder.size(); i++) {
+                Rendition rendition = ladder.get(i);
+                Path qualityFolder = renditionFolder(workFolder, input, rendition.quality());
+                partialOutputs.add(new PartialOutputs(qualityFolder, chunk.name() + "_"));
+                partialOutputs.add(new PartialOutputs(qualityFolder, chunk.name() + "."));
+
+                ffmpeg.addOutput(hlsOutput(qualityFolder.resolve(chunk.name() + ".m3u8"), chunk.name(), null, rendition,
+                        encoderThreads)
+                        .addArguments("-map", "[v" + i + "]")
+                        // Keep timestamps continuous across chunks so the stitched playlist plays without discontinuities
+                        .addArguments("-output_ts_offset", String.format(Locale.ROOT, "%.3f", chunk.start())));
+            }
+
+            if (storyboard != null) {
+                ffmpeg.addOutput(storyboardWriter.output(prepareStoryboardFolder(workFolder, input), chunk.name() + "_" + SPRITE_PREFIX)
+                        .addArguments("-map", "[sb]"));
+                partialOutputs.add(new PartialOutputs(storyboardFolder(workFolder, input), chunk.name() + "_" + SPRITE_PREFIX));
+            }
+
+            execute(ffmpeg, videoId, ladder, chunk.duration(), partialOutputs);
+            return null;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    public Mono<Map<String, String>> assembleChunks(UUID videoId, String videoPath, List<KeyframeChunker.Chunk> chunks,
+                                                    List<Rendition> ladder, Rendition storyboard) {
+        Path input = rootPath.resolve(videoPath);
+        return assembleChunks(videoId, input, input.getParent(), chunks, ladder, storyboard)
+                .map(manifests -> {
+                    addStoryboard(input, manifests);
+                    return manifests;
+                });
+    }
+
+    // Stitches the chunks in the work folder; the manifest paths returned are those of the published renditions
+    private Mono<Map<String, String>> assembleChunks(UUID videoId, Path input, Path workFolder,
+                                                     List<KeyframeChunker.Chunk> chunks, List<Rendition> ladder,
+                                                     Rendition storyboard) {
+        String nameNoExt = nameWithoutExtension(input);
+
+        return Mono.fromCallable(() -> {
+            Map<String, String> manifests = new HashMap<>();
+            for (Rendition rendition : ladder) {
+                String quality = rendition.quality();
+                Path qualityFolder = renditionFolder(workFolder, input, quality);
+                chunker.stitchPlaylists(qualityFolder, chunks);
+
+                if (keepMp4 && rendition.isH264()) {
+                    remuxToMp4(videoId, qualityFolder.resolve("index.m3u8"), audioPlaylist(input),
+                            qualityFolder.resolve(nameNoExt + "_" + quality + ".mp4"),
+                            chunks.stream().mapToDouble(KeyframeChunker.Chunk::duration).sum());
+                }
+                manifests.put(quality, relativeManifestPath(renditionFolder(input, quality)));
+            }
+
+            if (storyboard != null) {
+                List<StoryboardWriter.Span> spans = new ArrayList<>();
+                for (KeyframeChunker.Chunk chunk : chunks) {
+                    spans.add(new StoryboardWriter.Span(chunk.name() + "_" + SPRITE_PREFIX, chunk.start(), chunk.end()));
+                }
+                storyboardWriter.writeIndex(storyboardFolder(workFolder, input), storyboard, spans);
+            }
+            return manifests;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Path storyboardFolder(Path input) {
+        return storyboardFolder(input.getParent(), input);
+    }
+
+    private Path storyboardFolder(Path folder, Path input) {
+        return folder.resolve(nameWithoutExtension(input) + "_storyboard");
+    }
+
+    private Path prepareStoryboardFolder(Path folder, Path input) throws IOException {
+        return Files.createDirectories(storyboardFolder(folder, input));
+    }
+
+    private void addStoryboard(Path input, Map<String, String> videoUrls) {
+        Path index = storyboardFolder(input).resolve(StoryboardWriter.INDEX_FILE);
+        if (Files.exists(index)) {
+            videoUrls.put("storyboard", rootPath.relativize(index).toString().replace("\\", "/"));
+        }
+    }
+
+    // Adds a master playlist over the renditions of the ladder present in the map. H.264 variants are listed
+    // first, since players start with the first entry; the rest keep ladder order.
+    public Mono<Map<String, String>> withMasterPlaylist(UUID videoId, String videoPath, List<Rendition> ladder,
+                                                        Map<String, String> videoUrls) {
+        Path input = rootPath.resolve(videoPath);
+
+        return Mono.fromCallable(() -> {
+            List<Rendition> ordered = new ArrayList<>(ladder);
+            ordered.sort(Comparator.comparing((Rendition rendition) -> !rendition.isH264()));
+
+            List<MasterPlaylistWriter.Variant> variants = new ArrayList<>();
+            for (Rendition rendition : ordered) {
+                if (videoUrls.containsKey(rendition.quality())) {
+                    variants.add(new MasterPlaylistWriter.Variant(rendition,
+                            renditionFolder(input, rendition.quality()).resolve("index.m3u8")));
+                }
+            }
+
+            Path audioPlaylist = audioPlaylist(input);
+            MasterPlaylistWriter.Variant audio = audioPlaylist != null
+                    ? new MasterPlaylistWriter.Variant(audioRendition(), audioPlaylist)
+                    : null;
+            Path master = input.getParent().resolve(nameWithoutExtension(input) + "_master.m3u8");
+            masterPlaylistWriter.write(videoId, master, variants, audio);
+            videoUrls.put("master", rootPath.relativize(master).toString().replace("\\", "/"));
+
+            if (audio != null) {
+                videoUrls.put(audio.rendition().quality(), rootPath.relativize(audioPlaylist).toString().replace("\\", "/"));
+                // Video playlists are silent now, so each quality URL opens a one-variant master with the audio group
+                for (MasterPlaylistWriter.Variant variant : variants) {
+                    String quality = variant.rendition().quality();
+                    Path qualityMaster = input.getParent().resolve(nameWithoutExtension(input) + "_" + quality + ".m3u8");
+                    masterPlaylistWriter.write(videoId, qualityMaster, List.of(variant), audio);
+                    videoUrls.put(quality, rootPath.relativize(qualityMaster).toString().replace("\\", "/"));
+                }
+            }
+
+            return videoUrls;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Runs FFmpeg under the supervisor with its progress reported to the tracker for as long as the process lives.
+    // A run that fails, times out or is cancelled leaves no half-written segments behind.
+    private void execute(FFmpeg ffmpeg, UUID videoId, List<Rendition> renditions, double mediaSeconds,
+                         List<PartialOutputs> partialOutputs) {
+        TranscodeProgressTracker.Run run = progress.startRun(videoId, renditions, mediaSeconds);
+        boolean completed = false;
+        try {
+            supervisor.execute(videoId, ffmpeg.setProgressListener(run), mediaSeconds, renditions.size());
+            completed = true;
+        } finally {
+            progress.finishRun(run, completed);
+            if (!completed) {
+                deletePartialOutputs(partialOutputs);
+            }
+        }
+    }
+
+    private void deletePartialOutputs(List<PartialOutputs> partialOutputs) {
+        for (PartialOutputs outputs : partialOutputs) {
+            try {
+                if (Files.isDirectory(outputs.folder())) {
+                    for (Path file : jobState.outputsOf(outputs.folder(), outputs.prefix())) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not remove partial outputs in " + outputs.folder() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Without -threads the decoder sizes itself to every core of the machine, whatever the job's budget is
+    private UrlInput decoderInput(Path input, int threads) {
+        return UrlInput.fromPath(input)
+                .addArguments("-threads", String.valueOf(threads));
+    }
+
+    // Downloads carry the shared audio track again when the video playlist has none
+    private void remuxToMp4(UUID videoId, Path manifest, Path audioManifest, Path mp4, double duration) {
+        FFmpeg ffmpeg = supervisor.ffmpeg()
+                .addInput(UrlInput.fromPath(manifest));
+        UrlOutput output = UrlOutput.toPath(mp4)
+                .copyAllCodecs()
+                .addArguments("-movflags", "+faststart");
+        if (audioManifest != null) {
+            ffmpeg.addInput(UrlInput.fromPath(audioManifest));
+            output.addArguments("-map", "0:v")
+                    .addArguments("-map", "1:a");
+        }
+        supervisor.execute(videoId, ffmpeg.addOutput(output).setLogLevel(LogLevel.WARNING), duration, 1);
+    }
+
+    // The published audio playlist, when audio is encoded separately and has been produced
+    private Path audioPlaylist(Path input) {
+        Path playlist = renditionFolder(input, Rendition.audio(audioBitrateKbps).quality()).resolve("index.m3u8");
+        return separateAudio && Files.exists(playlist) ? playlist : null;
+    }
+
+    // With a storyboard rendition the split gets one more branch, labelled [sb], feeding the sprite sheets of the
+    // given seconds of media
+    private String splitScaleGraph(List<Rendition> ladder, Rendition storyboard, double seconds) {
+        int branches = ladder.size() + (storyboard != null ? 1 : 0);
+        StringBuilder filterGraph = new StringBuilder("[0:v]split=").append(branches);
+        for (int i = 0; i < branches; i++) {
+            filterGraph.append("[s").append(i).append("]");
+        }
+        for (int i = 0; i < ladder.size(); i++) {
+            filterGraph.append(";[s").append(i).append("]")
+                    .append(ladder.get(i).filter())
+                    .append("[v").append(i).append("]");
+        }
+        if (storyboard != null) {
+            filterGraph.append(";[s").append(ladder.size()).append("]")
+                    .append(storyboardWriter.filter(storyboard, seconds))
+                    .append("[sb]");
+        }
+        return filterGraph.toString();
+    }
+
+    private Mono<Map<String, String>> transcodePerRendition(UUID videoId, Path input, Path workFolder, String nameNoExt,
+                                                            double duration, List<Rendition> ladder, Rendition storyboard,
+                                                            int threads) {
+        int encoderThreads = Math.max(1, threads / ladder.size());
+
+        return Flux.fromIterable(ladder)
+                .flatMap(rendition ->
                         Mono.fromCallable(() -> {
-                            String quality = entry.getKey();
-                            String size = entry.getValue();
-
-                            Path qualityFolder = outputFolder.resolve(nameNoExt + "_" + quality);
-                            Files.createDirectories(qualityFolder);
-
-                            Path transcodedPath = qualityFolder.resolve(nameNoExt + "_" + quality + ".mp4");
-                            Files.deleteIfExists(transcodedPath);
-
-                            FFmpeg.atPath()
-                                    .addInput(UrlInput.fromPath(input))
-                                    .addOutput(UrlOutput.toPath(transcodedPath))
-                                    .setFilter(StreamType.VIDEO, "scale=" + size)
-                                    .addArguments("-c:v", "libx264")
-                                    .addArguments("-preset", "fast")
-                                    .addArguments("-crf", "23")
-                                    .addArguments("-c:a", "aac")
-                                    .addArguments("-b:a", "128k")
-                                    .setLogLevel(LogLevel.INFO)
-                                    .execute();
-
-                            Path manifest = qualityFolder.resolve("index.m3u8");
-                            Files.deleteIfExists(manifest);
-
-                            FFmpeg.atPath()
-                                    .addInput(UrlInput.fromPath(transcodedPath))
-                                    .addOutput(UrlOutput.toPath(manifest))
-                                    .addArguments("-c:v", "copy")
-                                    .addArguments("-c:a", "copy")
-                                    .addArguments("-hls_time", "8")
-                                    .addArguments("-hls_list_size", "0")
-                                    .addArguments("-f", "hls")
-                                    .setLogLevel(LogLevel.INFO)
-                                    .execute();
-
-                            String relativePath = rootPath.relativize(manifest).toString().replace("\\", "/");
-                            return Map.entry(quality, relativePath);
+                            String quality = rendition.quality();
+
+                            Path qualityFolder = prepareRenditionFolder(workFolder, nameNoExt, quality);
+                            Path mp4 = keepMp4 && rendition.isH264() ? qualityFolder.resolve(nameNoExt + "_" + quality + ".mp4") : null;
+
+                            // Only the storyboard rendition's own run also samples the sprite sheets
+                            Rendition runStoryboard = rendition.equals(storyboard) ? storyboard : null;
+
+                            FFmpeg ffmpeg = supervisor.ffmpeg()
+                                    .addInput(decoderInput(input, encoderThreads))
+                                    .setComplexFilter(splitScaleGraph(List.of(rendition), runStoryboard, duration))
+                                    .addOutput(hlsOutput(qualityFolder.resolve("index.m3u8"), null, mp4, rendition, encoderThreads)
+                                            .addArguments("-map", "[v0]"))
+                                    .setLogLevel(LogLevel.WARNING);
+
+                            List<PartialOutputs> partialOutputs = new ArrayList<>();
+                            partialOutputs.add(new PartialOutputs(qualityFolder, ""));
+                            if (runStoryboard != null) {
+                                ffmpeg.addOutput(storyboardWriter.output(prepareStoryboardFolder(workFolder, input), SPRITE_PREFIX)
+                                        .addArguments("-map", "[sb]"));
+                                partialOutputs.add(new PartialOutputs(storyboardFolder(workFolder, input), SPRITE_PREFIX));
+                            }
+
+                            execute(ffmpeg, videoId, List.of(rendition), duration, partialOutputs);
+
+                            if (runStoryboard != null) {
+                                storyboardWriter.writeIndex(storyboardFolder(workFolder, input), runStoryboard,
+                                        List.of(new StoryboardWriter.Span(SPRITE_PREFIX, 0, duration)));
+                            }
+                            publish(input, workFolder, List.of(rendition), runStoryboard != null);
+
+                            return Map.entry(quality, relativeManifestPath(renditionFolder(input, quality)));
                         }).subscribeOn(Schedulers.boundedElastic())
                 )
-                .collectMap(Map.Entry::getKey, Map.Entry::getValue);
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .map(manifests -> {
+                    if (storyboard != null) {
+                        addStoryboard(input, manifests);
+                    }
+                    return manifests;
+                });
+    }
+
+    private Path renditionFolder(Path input, String quality) {
+        return renditionFolder(input.getParent(), input, quality);
+    }
 
-        return Mono.zip(transcodingMono, durationMono)
-                .map(tuple -> {
-                    Map<String, String> urlsMap = tuple.getT1();
-                    String formattedDuration = tuple.getT2();
-                    urlsMap.put("duration", formattedDuration);
+    private Path renditionFolder(Path folder, Path input, String quality) {
+        return folder.resolve(nameWithoutExtension(input) + "_" + quality);
+    }
 
-                    return urlsMap;
-                });
+    private String nameWithoutExtension(Path input) {
+        String baseName = input.getFileName().toString();
+        int dot = baseName.lastIndexOf('.');
+        return dot > 0 ? baseName.substring(0, dot) : baseName;
     }
 
-    private String formatDuration(long totalSeconds) {
+    private Path prepareRenditionFolder(Path outputFolder, String nameNoExt, String quality) throws IOException {
+        Path qualityFolder = outputFolder.resolve(nameNoExt + "_" + quality);
+        Files.createDirectories(qualityFolder);
+
+        Files.deleteIfExists(qualityFolder.resolve("index.m3u8"));
+        Files.deleteIfExists(qualityFolder.resolve(nameNoExt + "_" + quality + ".mp4"));
+
+        return qualityFolder;
+    }
+
+    // Encodes straight into HLS segments; with a download path the tee muxer also writes an MP4 from the same encode.
+    // Segments are named after segmentBase when given, otherwise after the playlist.
+    private UrlOutput hlsOutput(Path manifest, String segmentBase, Path downloadMp4, Rendition rendition,
+                                int threads) {
+        // HEVC and AV1 are only carried in fragmented MP4, so these renditions never use .ts segments
+        Map<String, String> hlsOptions = hlsOptions(manifest, segmentBase, isSingleFileFmp4() || !rendition.isH264());
+
+        UrlOutput output;
+        if (downloadMp4 != null) {
+            String teeOptions = hlsOptions.entrySet().stream()
+                    .map(option -> option.getKey() + "=" + option.getValue())
+                    .collect(Collectors.joining(":"));
+            // With shared audio only the MP4 download keeps the audio track
+            String hlsStreams = separateAudio ? "select=v:" : "";
+            output = UrlOutput.toUrl("[" + hlsStreams + "f=hls:" + teeOptions + "]" + manifest
+                            + "|[f=mp4:movflags=+faststart]" + downloadMp4)
+                    .setFormat("tee");
+        } else {
+            UrlOutput hls = UrlOutput.toPath(manifest)
+                    .setFormat("hls");
+            hlsOptions.forEach((option, value) -> hls.addArguments("-" + option, value));
+            output = hls;
+        }
+
+        videoEncoder(output, rendition, threads);
+        output.addArguments("-maxrate", rendition.maxBitrateKbps() + "k")
+                .addArguments("-bufsize", rendition.bufferSizeKbps() + "k")
+                // Keyframes on the same grid in every rendition keep segment boundaries aligned for quality switches
+                .addArguments("-force_key_frames", "expr:gte(t,n_forced*" + HLS_SEGMENT_SECONDS + ")");
+
+        if (separateAudio && downloadMp4 == null) {
+            return output.addArgument("-an");
+        }
+        return output
+                .addArguments("-map", "0:a?")
+                .addArguments("-c:a", "aac")
+                .addArguments("-b:a", audioBitrateKbps + "k");
+    }
+
+    // Muxer options shared by video and audio renditions. Segments are named after segmentBase when given,
+    // otherwise after the playlist.
+    private Map<String, String> hlsOptions(Path manifest, String segmentBase, boolean fragmented) {
+        Map<String, String> hlsOptions = new LinkedHashMap<>();
+        hlsOptions.put("hls_time", String.valueOf(HLS_SEGMENT_SECONDS));
+        hlsOptions.put("hls_list_size", "0");
+        if (isSingleFileFmp4()) {
+            // One fragmented MP4 per playlist: init segment plus fragments addressed with EXT-X-BYTERANGE
+            hlsOptions.put("hls_segment_type", "fmp4");
+            hlsOptions.put("hls_flags", "single_file");
+            hlsOptions.put("hls_segment_filename",
+                    manifest.resolveSibling((segmentBase != null ? segmentBase : "stream") + ".mp4").toString());
+        } else if (fragmented) {
+            hlsOptions.put("hls_segment_type", "fmp4");
+            if (segmentBase != null) {
+                hlsOptions.put("hls_fmp4_init_filename", segmentBase + "_init.mp4");
+                hlsOptions.put("hls_segment_filename", manifest.resolveSibling(segmentBase + "_%04d.m4s").toString());
+            }
+        } else if (segmentBase != null) {
+            hlsOptions.put("hls_segment_filename", manifest.resolveSibling(segmentBase + "_%04d.ts").toString());
+        }
+        return hlsOptions;
+    }
+
+    // Scene-cut keyframes are disabled in every encoder so only the forced segment grid places them
+    private void videoEncoder(UrlOutput output, Rendition rendition, int threads) {
+        String keyframeInterval = String.valueOf(Math.max(1, Math.round(HLS_SEGMENT_SECONDS * rendition.frameRate())));
+
+        switch (rendition.codec()) {
+            case Rendition.HEVC -> output
+                    .addArguments("-c:v", "libx265")
+                    // hvc1 is the sample entry Apple players require
+                    .addArguments("-tag:v", "hvc1")
+                    .addArguments("-preset", rendition.preset())
+                    .addArguments("-crf", String.valueOf(rendition.crf()))
+                    .addArguments("-g", keyframeInterval)
+                    .addArguments("-x265-params", "scenecut=0:open-gop=0:pools=" + threads + ":log-level=error");
+            case Rendition.AV1 -> output
+                    .addArguments("-c:v", "libsvtav1")
+                    .addArguments("-preset", rendition.preset())
+                    .addArguments("-crf", String.valueOf(rendition.crf()))
+                    .addArguments("-g", keyframeInterval)
+                    .addArguments("-svtav1-params", "scd=0:lp=" + threads);
+            default -> output
+                    .addArguments("-c:v", "libx264")
+                    .addArguments("-preset", rendition.preset())
+                    .addArguments("-crf", String.valueOf(rendition.crf()))
+                    .addArguments("-sc_threshold", "0")
+                    .addArguments("-threads", String.valueOf(threads));
+        }
+    }
+
+    private String relativeManifestPath(Path qualityFolder) {
+        return rootPath.relativize(qualityFolder.resolve("index.m3u8")).toString().replace("\\", "/");
+    }
+
+    public String formatDuration(double duration) {
+        long totalSeconds = (long) duration;
         long hours = totalSeconds / 3600;
         long minutes = (totalSeconds % 3600) / 60;
         long seconds = totalSeconds % 60;
@@ -134,15 +842,33 @@ public class VideoProcessor {
         }
     }
 
-    public Mono<Void> publishProcessingSuccess(UUID videoId, Map<String, String> videoUrls) {
+    public Mono<Void> publishProcessingSuccess(UUID videoId, Map<String, String> videoUrls, MediaProbe probe,
+                                               List<Rendition> ladder) {
         VideoProcessSuccessEvent successEvent = new VideoProcessSuccessEvent(
                 videoId,
                 "SUCCESS",
-                videoUrls
+                videoUrls,
+                probe,
+                ladder
         );
         return kafkaPublisher.sendEvent("video.process.result", videoId.toString(), successEvent);
     }
 
+    // Same partition key as the final result so catalog never sees a rendition after the success event
+    private Mono<Void> publishRenditionReady(UUID videoId, Map<String, String> videoUrls, double duration) {
+        Map<String, String> resolutions = new HashMap<>(videoUrls);
+        resolutions.put("duration", formatDuration(duration));
+
+        System.out.println("Renditions " + videoUrls.keySet() + " of video " + videoId + " are ready");
+
+        VideoRenditionReadyEvent readyEvent = new VideoRenditionReadyEvent(
+                videoId,
+                "RENDITION_READY",
+                resolutions
+        );
+        return kafkaPublisher.sendEvent("video.process.result", videoId.toString(), readyEvent);
+    }
+
     public Mono<Void> publishProcessingFailure(UUID videoId, String errorCode, String errorMessage) {
         VideoProcessFailureEvent failureEvent = new VideoProcessFailureEvent(
                 videoId,
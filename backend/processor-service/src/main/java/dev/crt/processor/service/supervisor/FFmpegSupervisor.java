@@ -0,0 +1,235 @@
+package dev.crt.processor.service.supervisor;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.FFmpegResultFuture;
+import com.github.kokorin.jaffree.ffprobe.FFprobe;
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import dev.crt.processor.service.exception.TranscodeAbortedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Owns every FFmpeg and FFprobe process the processor starts: each run gets a deadline derived from the media it
+// reads, runs at a lower CPU priority than the service itself, and can be stopped when its video is cancelled.
+// Commands are created through ffmpeg() and ffprobe(), which launch the binaries under nice, so the priority applies
+// from the first instruction and to that process only.
+@Component
+public class FFmpegSupervisor {
+
+    // Cancelling a video that is not running yet still stops it when it starts, unless the mark is this old
+    private static final Duration CANCEL_MARK_TTL = Duration.ofHours(24);
+
+    // How to stop each running process, per video
+    private final Map<UUID, Set<Runnable>> running = new ConcurrentHashMap<>();
+    private final Map<UUID, Instant> cancelled = new ConcurrentHashMap<>();
+    // Folder holding ffmpeg and ffprobe launchers that exec the real ones under nice; null runs them as is
+    private final Path niceLauncher;
+
+    private final Counter timeouts;
+    private final Counter cancellations;
+
+    @Value("${processor.supervisor.min-timeout-seconds:120}")
+    private long minTimeoutSeconds;
+
+    // Wall-clock seconds allowed per second of media and per rendition encoded
+    @Value("${processor.supervisor.run-timeout-factor:3.0}")
+    private double runTimeoutFactor;
+
+    @Value("${processor.supervisor.job-timeout-factor:6.0}")
+    private double jobTimeoutFactor;
+
+    // Probes only demux, so they get a fraction of a second per second of media
+    @Value("${processor.supervisor.probe-timeout-factor:0.1}")
+    private double probeTimeoutFactor;
+
+    // nice of 0 leaves FFmpeg at the service's own priority
+    public FFmpegSupervisor(MeterRegistry registry, @Value("${processor.supervisor.nice:10}") int nice) {
+        this.niceLauncher = nice > 0 ? createNiceLauncher(nice) : null;
+
+        this.timeouts = Counter.builder("processor.supervisor.timeouts")
+                .description("FFmpeg and FFprobe runs stopped because they exceeded their deadline")
+                .register(registry);
+        this.cancellations = Counter.builder("processor.supervisor.cancellations")
+                .description("FFmpeg and FFprobe runs stopped because their video was cancelled")
+                .register(registry);
+        Gauge.builder("processor.supervisor.processes", running, r -> r.values().stream().mapToInt(Set::size).sum())
+                .description("FFmpeg and FFprobe processes currently running")
+                .register(registry);
+    }
+
+    // Deadline of a whole job, covering every run and the work between them
+    public Duration jobTimeout(double mediaSeconds, int renditions) {
+        return timeout(mediaSeconds, renditions, jobTimeoutFactor);
+    }
+
+    public Duration runTimeout(double mediaSeconds, int renditions) {
+        return timeout(mediaSeconds, renditions, runTimeoutFactor);
+    }
+
+    public Duration probeTimeout(double mediaSeconds) {
+        return timeout(mediaSeconds, 1, probeTimeoutFactor);
+    }
+
+    private Duration timeout(double mediaSeconds, int renditions, double factor) {
+        long seconds = minTimeoutSeconds + (long) Math.ceil(mediaSeconds * Math.max(1, renditions) * factor);
+        return Duration.ofSeconds(seconds);
+    }
+
+    // A new FFmpeg command for execute
+    public FFmpeg ffmpeg() {
+        return niceLauncher != null ? FFmpeg.atPath(niceLauncher) : FFmpeg.atPath();
+    }
+
+    // A new FFprobe command for probe
+    public FFprobe ffprobe() {
+        return niceLauncher != null ? FFprobe.atPath(niceLauncher) : FFprobe.atPath();
+    }
+
+    // Runs FFmpeg to completion. A run that is cancelled, times out or is interrupted is force-stopped before this returns.
+    public void execute(UUID videoId, FFmpeg ffmpeg, double mediaSeconds, int renditions) {
+        checkNotCancelled(videoId);
+        Duration timeout = runTimeout(mediaSeconds, renditions);
+
+        FFmpegResultFuture future = ffmpeg.executeAsync();
+        Runnable stop = future::forceStop;
+        register(videoId, stop);
+
+        try {
+            future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.forceStop();
+            timeouts.increment();
+            throw new TranscodeAbortedException(TranscodeAbortedException.TIMEOUT,
+                    "FFmpeg run of video " + videoId + " exceeded " + timeout.toSeconds() + "s for " + Math.round(mediaSeconds) + "s of media");
+        } catch (InterruptedException e) {
+            // The job's Mono was disposed, e.g. by the job timeout
+            future.forceStop();
+            Thread.currentThread().interrupt();
+            throw new TranscodeAbortedException(TranscodeAbortedException.CANCELLED, "FFmpeg run of video " + videoId + " was interrupted");
+        } catch (ExecutionException e) {
+            checkNotCancelled(videoId);
+            throw e.getCause() instanceof RuntimeException runtime ? runtime : new RuntimeException(e.getCause());
+        } finally {
+            unregister(videoId, stop);
+        }
+        checkNotCancelled(videoId);
+    }
+
+    // Runs FFprobe with a deadline from the media it reads (0 when unknown). Probes demux without decoding much,
+    // so they run on one thread whatever the job's budget; a stopped probe has its process destroyed.
+    public FFprobeResult probe(UUID videoId, FFprobe ffprobe, double mediaSeconds) {
+        checkNotCancelled(videoId);
+        Duration timeout = probeTimeout(mediaSeconds);
+
+        // Jaffree runs the probe on its own thread and destroys the process when that thread is interrupted
+        Future<FFprobeResult> future = ffprobe.addArguments("-threads", "1").executeAsync();
+        Runnable stop = () -> future.cancel(true);
+        register(videoId, stop);
+
+        try {
+            FFprobeResult result = future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            checkNotCancelled(videoId);
+            return result;
+        } catch (TimeoutException e) {
+            stop.run();
+            timeouts.increment();
+            throw new TranscodeAbortedException(TranscodeAbortedException.TIMEOUT,
+                    "FFprobe run of video " + videoId + " exceeded " + timeout.toSeconds() + "s");
+        } catch (InterruptedException e) {
+            stop.run();
+            Thread.currentThread().interrupt();
+            throw new TranscodeAbortedException(TranscodeAbortedException.CANCELLED, "FFprobe run of video " + videoId + " was interrupted");
+        } catch (CancellationException e) {
+            throw new TranscodeAbortedException(TranscodeAbortedException.CANCELLED, "Transcoding of video " + videoId + " was cancelled");
+        } catch (ExecutionException e) {
+            checkNotCancelled(videoId);
+            throw e.getCause() instanceof RuntimeException runtime ? runtime : new RuntimeException(e.getCause());
+        } finally {
+            unregister(videoId, stop);
+        }
+    }
+
+    private void register(UUID videoId, Runnable stop) {
+        running.computeIfAbsent(videoId, id -> ConcurrentHashMap.newKeySet()).add(stop);
+    }
+
+    private void unregister(UUID videoId, Runnable stop) {
+        running.computeIfPresent(videoId, (id, stops) -> {
+            stops.remove(stop);
+            return stops.isEmpty() ? null : stops;
+        });
+    }
+
+    // Stops the video's running processes and every run it would start later. Returns how many were running.
+    public int cancel(UUID videoId) {
+        Instant now = Instant.now();
+        cancelled.values().removeIf(markedAt -> markedAt.isBefore(now.minus(CANCEL_MARK_TTL)));
+        cancelled.put(videoId, now);
+
+        Set<Runnable> stops = running.getOrDefault(videoId, Set.of());
+        stops.forEach(Runnable::run);
+        cancellations.increment(stops.size());
+
+        System.out.println("Cancelled video " + videoId + ", stopped " + stops.size() + " FFmpeg/FFprobe runs");
+        return stops.size();
+    }
+
+    public boolean isCancelled(UUID videoId) {
+        return cancelled.containsKey(videoId);
+    }
+
+    public void checkNotCancelled(UUID videoId) {
+        if (isCancelled(videoId)) {
+            throw new TranscodeAbortedException(TranscodeAbortedException.CANCELLED, "Transcoding of video " + videoId + " was cancelled");
+        }
+    }
+
+    // Called once a job has reported its outcome, so a later upload of the same video is processed normally
+    public void finishJob(UUID videoId) {
+        cancelled.remove(videoId);
+    }
+
+    // Jaffree runs <folder>/ffmpeg and <folder>/ffprobe; these exec the binaries on the PATH through nice, keeping
+    // the same process, so stopping a run still stops FFmpeg or FFprobe itself
+    private static Path createNiceLauncher(int nice) {
+        if (System.getProperty("os.name", "").startsWith("Windows")) {
+            return null;
+        }
+        try {
+            Path folder = Files.createTempDirectory("ffmpeg-nice-");
+            folder.toFile().deleteOnExit();
+            for (String binary : List.of("ffmpeg", "ffprobe")) {
+                Path launcher = folder.resolve(binary);
+                Files.writeString(launcher, "#!/bin/sh\nexec nice -n " + nice + " " + binary + " \"$@\"\n",
+                        StandardCharsets.UTF_8);
+                if (!launcher.toFile().setExecutable(true)) {
+                    throw new IOException("cannot make " + launcher + " executable");
+                }
+                launcher.toFile().deleteOnExit();
+            }
+            return folder;
+        } catch (IOException e) {
+            System.err.println("Could not create the nice launchers, FFmpeg runs at normal priority: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package dev.crt.processor.service.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Samples CPU time of this JVM plus its reaped children (FFmpeg) from /proc/self/stat,
+// and the peak resident memory of the FFmpeg processes by polling their /proc/<pid>/status.
+class ProcessSampler implements AutoCloseable {
+
+    private static final long CLOCK_TICKS = clockTicks();
+    private static final long SAMPLE_INTERVAL_MS = 20;
+
+    private final long startCpuTicks;
+    private final Thread poller;
+    private volatile boolean running = true;
+    private volatile long peakRssBytes;
+
+    ProcessSampler() {
+        this.startCpuTicks = cpuTicks();
+        this.poller = new Thread(this::poll, "benchmark-rss-sampler");
+        this.poller.setDaemon(true);
+        this.poller.start();
+    }
+
+    double cpuSeconds() {
+        return (double) (cpuTicks() - startCpuTicks) / CLOCK_TICKS;
+    }
+
+    long peakRssBytes() {
+        return peakRssBytes;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        poller.join();
+    }
+
+    private void poll() {
+        while (running) {
+            // Concurrent FFmpeg runs add up; VmHWM also catches peaks between two samples of a single run
+            long total = 0;
+            long highWater = 0;
+            for (ProcessHandle child : ProcessHandle.current().descendants().toList()) {
+                total += statusKb(child.pid(), "VmRSS:") * 1024;
+                highWater = Math.max(highWater, statusKb(child.pid(), "VmHWM:") * 1024);
+            }
+            peakRssBytes = Math.max(peakRssBytes, Math.max(total, highWater));
+
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // utime + stime + cutime + cstime; children only count once FFmpeg has exited and been waited for
+    private static long cpuTicks() {
+        try {
+            String stat = Files.readString(Path.of("/proc/self/stat"));
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12])
+                    + Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+        } catch (IOException e) {
+            throw new IllegalStateException("CPU accounting needs /proc (Linux)", e);
+        }
+    }
+
+    private static long statusKb(long pid, String field) {
+        try {
+            List<String> lines = Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"));
+            for (String line : lines) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The process exited between listing and reading
+        }
+        return 0;
+    }
+
+    private static long clockTicks() {
+        try {
+            Process process = new ProcessBuilder("getconf", "CLK_TCK").start();
+            String output = new String(process.getInputStream().readAllBytes()).trim();
+            process.waitFor();
+            return Long.parseLong(output);
+        } catch (IOException | NumberFormatException e) {
+            return 100;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 100;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package dev.crt.processor.service.benchmark;
+
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.NullOutput;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import dev.crt.processor.service.media.Rendition;
+
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Full-reference quality of one rendition against the source, compared at the rendition's size.
+// FFmpeg prints the averages of the psnr and ssim filters at the end of the run.
+class QualityMeter {
+
+    record Quality(double psnr, double ssim) {}
+
+    private static final Pattern PSNR = Pattern.compile("PSNR .*average:([0-9.]+|inf)");
+    private static final Pattern SSIM = Pattern.compile("SSIM .*All:([0-9.]+)");
+
+    Quality measure(Path rendition, Path source, Rendition target) {
+        double[] psnr = {Double.NaN};
+        double[] ssim = {Double.NaN};
+
+        // Both sides restart at zero so HLS timestamp offsets do not pair the wrong frames
+        String graph = "[1:v]" + target.filter() + ",setpts=PTS-STARTPTS,split[r1][r2];"
+                + "[0:v]setpts=PTS-STARTPTS,split[d1][d2];"
+                + "[d1][r1]psnr;[d2][r2]ssim";
+
+        FFmpeg.atPath()
+                .addInput(UrlInput.fromPath(rendition))
+                .addInput(UrlInput.fromPath(source))
+                .setComplexFilter(graph)
+                .addOutput(new NullOutput())
+                .setLogLevel(LogLevel.INFO)
+                .setOutputListener(line -> {
+                    Matcher psnrMatch = PSNR.matcher(line);
+                    if (psnrMatch.find()) {
+                        psnr[0] = "inf".equals(psnrMatch.group(1)) ? Double.POSITIVE_INFINITY : Double.parseDouble(psnrMatch.group(1));
+                    }
+                    Matcher ssimMatch = SSIM.matcher(line);
+                    if (ssimMatch.find()) {
+                        ssim[0] = Double.parseDouble(ssimMatch.group(1));
+                    }
+                })
+                .execute();
+
+        return new Quality(psnr[0], ssim[0]);
+    }
+}
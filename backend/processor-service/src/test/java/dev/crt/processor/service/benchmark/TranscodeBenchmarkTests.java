@@ -0,0 +1,205 @@
+package dev.crt.processor.service.benchmark;
+
+import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
+import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import dev.crt.processor.service.kafka.consumer.KafkaConsumerRunner;
+import dev.crt.processor.service.kafka.producer.KafkaPublisher;
+import dev.crt.processor.service.media.MediaProbe;
+import dev.crt.processor.service.media.Rendition;
+import dev.crt.processor.service.service.VideoProcessor;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+// Offline transcoding benchmark: synthetic lavfi clips go through VideoProcessor exactly as a cataloged
+// video would, with Kafka stubbed out. Run with `mvn -Pbenchmark test`; needs ffmpeg/ffprobe on the PATH.
+// The matrix and any processor.* setting can be overridden with -D system properties, e.g.
+// -Dbenchmark.durations=30,120 -Dbenchmark.resolutions=1920x1080 -Dprocessor.transcode.single-decode=false
+@Tag("benchmark")
+@SpringBootTest
+class TranscodeBenchmarkTests {
+
+    private static final Path ROOT = Paths.get("uploads");
+    private static final Path BENCHMARK_FOLDER = ROOT.resolve("benchmark");
+    private static final Path REPORT = Paths.get("target", "benchmark", "results.csv");
+
+    @Autowired
+    private VideoProcessor processor;
+
+    @MockitoBean
+    private KafkaPublisher kafkaPublisher;
+
+    @MockitoBean
+    private KafkaConsumerRunner consumerRunner;
+
+    @BeforeEach
+    void setUp() {
+        Assumptions.assumeTrue(ffmpegAvailable(), "ffmpeg is not on the PATH");
+        when(kafkaPublisher.sendEvent(any(), any(), any())).thenReturn(Mono.empty());
+    }
+
+    @AfterAll
+    static void cleanUp() throws IOException {
+        deleteRecursively(BENCHMARK_FOLDER);
+    }
+
+    @Test
+    void transcodeSyntheticClips() throws Exception {
+        List<String> durations = List.of(System.getProperty("benchmark.durations", "10,30").split(","));
+        List<String> resolutions = List.of(System.getProperty("benchmark.resolutions", "1280x720,1920x1080").split(","));
+        int runs = Integer.getInteger("benchmark.runs", 1);
+        int threads = Integer.getInteger("benchmark.threads", Runtime.getRuntime().availableProcessors());
+
+        List<String> report = new ArrayList<>();
+        report.add("clip,run,wall_s,cpu_s,peak_rss_mb,output_mb,rendition,rendition_mb,psnr_db,ssim");
+
+        for (String resolution : resolutions) {
+            for (String duration : durations) {
+                String clip = resolution.trim() + "_" + duration.trim() + "s";
+                Path source = generateClip(clip, resolution.trim(), Integer.parseInt(duration.trim()));
+
+                for (int run = 1; run <= runs; run++) {
+                    report.addAll(benchmark(clip, run, source, threads));
+                }
+            }
+        }
+
+        Files.createDirectories(REPORT.getParent());
+        Files.write(REPORT, report, StandardCharsets.UTF_8);
+
+        System.out.println("Transcoding benchmark (" + threads + " threads, " + ffmpegVersion() + ")");
+        report.forEach(System.out::println);
+        System.out.println("Written to " + REPORT.toAbsolutePath());
+    }
+
+    private List<String> benchmark(String clip, int run, Path source, int threads) throws Exception {
+        clearOutputs(source);
+        String videoPath = ROOT.relativize(source).toString().replace("\\", "/");
+
+        UUID videoId = UUID.randomUUID();
+        MediaProbe probe = processor.probe(videoId, videoPath).block();
+
+        // The complexity trial is part of every job, so it is timed and sampled with the transcode
+        long startedAt = System.nanoTime();
+        List<Rendition> ladder;
+        Map<String, String> videoUrls;
+        double cpuSeconds;
+        long peakRss;
+        try (ProcessSampler sampler = new ProcessSampler()) {
+            ladder = processor.ladder(videoId, videoPath, probe, threads).block();
+            videoUrls = processor.processVideo(videoId, videoPath, probe, ladder, threads).block();
+            cpuSeconds = sampler.cpuSeconds();
+            peakRss = sampler.peakRssBytes();
+        }
+        double wallSeconds = (System.nanoTime() - startedAt) / 1e9;
+        long outputBytes = folderSize(source.getParent()) - Files.size(source);
+
+        QualityMeter meter = new QualityMeter();
+        List<String> rows = new ArrayList<>();
+        for (Rendition rendition : ladder) {
+            // Quality URLs may point at a one-variant master next to the source; the segments live in the rendition folder
+            Path playlist = source.resolveSibling("source_" + rendition.quality()).resolve("index.m3u8");
+            QualityMeter.Quality quality = meter.measure(playlist, source, rendition);
+
+            rows.add(String.format(Locale.ROOT, "%s,%d,%.2f,%.2f,%.1f,%.2f,%s,%.2f,%.2f,%.4f",
+                    clip, run, wallSeconds, cpuSeconds, peakRss / 1048576.0, outputBytes / 1048576.0,
+                    rendition.quality(), folderSize(playlist.getParent()) / 1048576.0, quality.psnr(), quality.ssim()));
+        }
+        return rows;
+    }
+
+    // testsrc2 and sine are deterministic, so every machine benchmarks the same pixels and samples
+    private Path generateClip(String clip, String resolution, int seconds) throws IOException {
+        Path folder = Files.createDirectories(BENCHMARK_FOLDER.resolve(clip));
+        Path source = folder.resolve("source.mp4");
+
+        if (!Files.exists(source)) {
+            FFmpeg.atPath()
+                    .addInput(UrlInput.fromUrl("testsrc2=size=" + resolution + ":rate=30:duration=" + seconds)
+                            .setFormat("lavfi"))
+                    .addInput(UrlInput.fromUrl("sine=frequency=1000:sample_rate=48000:duration=" + seconds)
+                            .setFormat("lavfi"))
+                    .addOutput(UrlOutput.toPath(source)
+                            .addArguments("-c:v", "libx264")
+                            .addArguments("-preset", "ultrafast")
+                            .addArguments("-crf", "16")
+                            .addArguments("-pix_fmt", "yuv420p")
+                            .addArguments("-c:a", "aac")
+                            .addArgument("-shortest"))
+                    .setOverwriteOutput(true)
+                    .setLogLevel(LogLevel.ERROR)
+                    .execute();
+        }
+        return source;
+    }
+
+    // Every run starts cold: no renditions and no job checkpoint to resume from
+    private void clearOutputs(Path source) throws IOException {
+        try (Stream<Path> paths = Files.list(source.getParent())) {
+            for (Path path : paths.toList()) {
+                if (!path.equals(source)) {
+                    deleteRecursively(path);
+                }
+            }
+        }
+    }
+
+    private long folderSize(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path entry : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    private static boolean ffmpegAvailable() {
+        return !ffmpegVersion().isEmpty();
+    }
+
+    private static String ffmpegVersion() {
+        try {
+            Process process = new ProcessBuilder("ffmpeg", "-version").redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            process.waitFor();
+            return output.lines().findFirst().orElse("");
+        } catch (IOException e) {
+            return "";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package dev.crt.processor.service.media;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EncodingLadderTests {
+
+    private EncodingLadder ladder;
+
+    @BeforeEach
+    void setUp() {
+        ladder = new EncodingLadder();
+        ReflectionTestUtils.setField(ladder, "maxFrameRate", 60.0);
+        ReflectionTestUtils.setField(ladder, "extraCodecs", List.of());
+        ReflectionTestUtils.setField(ladder, "extraCodecsMinShortSide", 720);
+    }
+
+    @Test
+    void fullHdSourceGetsEveryRung() {
+        List<Rendition> renditions = ladder.build(probe(1920, 1080, 30, 0), null);
+
+        assertEquals(List.of("1080p", "720p", "360p"), qualities(renditions));
+        assertSize(renditions.get(0), 1920, 1080);
+        assertSize(renditions.get(1), 1280, 720);
+        assertSize(renditions.get(2), 640, 360);
+
+        Rendition top = renditions.get(0);
+        assertEquals(5000, top.videoBitrateKbps());
+        assertEquals(5000, top.maxBitrateKbps());
+        assertEquals(10000, top.bufferSizeKbps());
+        assertEquals(23, top.crf());
+        assertEquals("fast", top.preset());
+        assertTrue(top.isH264());
+    }
+
+    @Test
+    void rungsAboveTheSourceAreSkipped() {
+        assertEquals(List.of("720p", "360p"), qualities(ladder.build(probe(1280, 720, 30, 0), null)));
+    }
+
+    @Test
+    void sourceBelowTheLowestRungKeepsItsOwnSize() {
+        List<Rendition> renditions = ladder.build(probe(426, 240, 30, 0), null);
+
+        assertEquals(List.of("240p"), qualities(renditions));
+        assertSize(renditions.get(0), 426, 240);
+        // The lowest rung's bitrate scaled by pixel count
+        assertEquals(355, renditions.get(0).videoBitrateKbps());
+    }
+
+    @Test
+    void rotatedPortraitSourceKeepsItsOrientation() {
+        // A phone recording probed as 1920x1080 with a 90 degree rotation
+        List<Rendition> renditions = ladder.build(probe(1080, 1920, 30, 0), null);
+
+        assertEquals(List.of("1080p", "720p", "360p"), qualities(renditions));
+        assertSize(renditions.get(0), 1080, 1920);
+        assertSize(renditions.get(2), 360, 640);
+    }
+
+    @Test
+    void anamorphicSourceIsLaidOutAtItsDisplayAspect() {
+        // PAL 720x576 with a 16:15 sample aspect ratio displays as 768x576
+        List<Rendition> renditions = ladder.build(probe(768, 576, 25, 0), null);
+
+        assertEquals(List.of("360p"), qualities(renditions));
+        assertSize(renditions.get(0), 480, 360);
+        assertTrue(renditions.get(0).filter().contains("setsar=1"));
+    }
+
+    @Test
+    void bitrateIsCappedAtTheSourceBitrate() {
+        List<Rendition> renditions = ladder.build(probe(1920, 1080, 30, 1500), null);
+
+        assertEquals(1500, renditions.get(0).videoBitrateKbps());
+        assertEquals(1500, renditions.get(1).videoBitrateKbps());
+        assertEquals(800, renditions.get(2).videoBitrateKbps());
+    }
+
+    @Test
+    void starvedSourceStillGetsTheFloorBitrate() {
+        List<Rendition> renditions = ladder.build(probe(1280, 720, 30, 100), null);
+
+        assertEquals(200, renditions.get(0).videoBitrateKbps());
+    }
+
+    @Test
+    void highFrameRatesGetMoreBitsAndAreCapped() {
+        Rendition sixty = ladder.build(probe(1920, 1080, 60, 0), null).get(0);
+        assertEquals(7500, sixty.videoBitrateKbps());
+        assertFalse(sixty.frameRateCapped());
+
+        Rendition hundredTwenty = ladder.build(probe(1920, 1080, 120, 0), null).get(0);
+        assertTrue(hundredTwenty.frameRateCapped());
+        assertEquals(60, hundredTwenty.frameRate());
+        assertTrue(hundredTwenty.filter().endsWith(",fps=60.000"));
+    }
+
+    @Test
+    void complexityTunesCrfPresetAndCaps() {
+        Rendition simple = ladder.build(probe(1920, 1080, 30, 0), complexity(ContentComplexity.Level.LOW)).get(0);
+        assertEquals(25, simple.crf());
+        assertEquals("medium", simple.preset());
+        assertEquals(3000, simple.videoBitrateKbps());
+
+        Rendition complex = ladder.build(probe(1920, 1080, 30, 0), complexity(ContentComplexity.Level.HIGH)).get(0);
+        assertEquals(23, complex.crf());
+        assertEquals("fast", complex.preset());
+        assertEquals(6250, complex.videoBitrateKbps());
+    }
+
+    @Test
+    void extraCodecsGoInFrontOfTheLargeRungs() {
+        ReflectionTestUtils.setField(ladder, "extraCodecs", List.of("hevc", "av1", "vp9"));
+
+        List<Rendition> renditions = ladder.build(probe(1920, 1080, 30, 0), null);
+
+        assertEquals(List.of("1080p_hevc", "720p_hevc", "1080p_av1", "720p_av1", "1080p", "720p", "360p"),
+                qualities(renditions));
+
+        Rendition hevc = renditions.get(0);
+        assertEquals(Rendition.HEVC, hevc.codec());
+        assertEquals(3500, hevc.videoBitrateKbps());
+        assertEquals(28, hevc.crf());
+        assertEquals("fast", hevc.preset());
+
+        Rendition av1 = renditions.get(2);
+        assertEquals(Rendition.AV1, av1.codec());
+        assertEquals(3000, av1.videoBitrateKbps());
+        assertEquals(35, av1.crf());
+        assertEquals("8", av1.preset());
+
+        // The storyboard rendition is the last one, and stays H.264
+        assertTrue(renditions.get(renditions.size() - 1).isH264());
+    }
+
+    private MediaProbe probe(int width, int height, double frameRate, long videoBitrateKbps) {
+        return new MediaProbe(120, width, height, frameRate, "h264", videoBitrateKbps, "aac", 2);
+    }
+
+    private ContentComplexity complexity(ContentComplexity.Level level) {
+        return new ContentComplexity(0.1, level);
+    }
+
+    private List<String> qualities(List<Rendition> renditions) {
+        return renditions.stream().map(Rendition::quality).toList();
+    }
+
+    private void assertSize(Rendition rendition, int width, int height) {
+        assertEquals(width, rendition.width(), rendition.quality() + " width");
+        assertEquals(height, rendition.height(), rendition.quality() + " height");
+    }
+}
@@ -0,0 +1,101 @@
+package dev.crt.processor.service.media;
+
+import com.github.kokorin.jaffree.Rational;
+import com.github.kokorin.jaffree.StreamType;
+import com.github.kokorin.jaffree.ffprobe.FFprobe;
+import com.github.kokorin.jaffree.ffprobe.FFprobeResult;
+import com.github.kokorin.jaffree.ffprobe.Format;
+import com.github.kokorin.jaffree.ffprobe.SideData;
+import com.github.kokorin.jaffree.ffprobe.Stream;
+import dev.crt.processor.service.supervisor.FFmpegSupervisor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MediaProberTests {
+
+    private final FFmpegSupervisor supervisor = mock(FFmpegSupervisor.class);
+    private final MediaProber prober = new MediaProber(supervisor);
+
+    @BeforeEach
+    void setUp() {
+        // The command is built but never run; the supervisor returns the result
+        when(supervisor.ffprobe()).thenReturn(FFprobe.atPath());
+    }
+
+    @Test
+    void rotatedVideoSwapsWidthAndHeight() {
+        Stream video = video(1920, 1080);
+        SideData displayMatrix = mock(SideData.class);
+        when(displayMatrix.getRotation()).thenReturn(-90);
+        when(video.getSideDataList()).thenReturn(List.of(displayMatrix));
+
+        MediaProbe probe = probe(video);
+
+        assertEquals(1080, probe.width());
+        assertEquals(1920, probe.height());
+    }
+
+    @Test
+    void rotateTagIsHonouredWithoutSideData() {
+        Stream video = video(1280, 720);
+        when(video.getTagLong("rotate")).thenReturn(270L);
+
+        MediaProbe probe = probe(video);
+
+        assertEquals(720, probe.width());
+        assertEquals(1280, probe.height());
+    }
+
+    @Test
+    void sampleAspectRatioStretchesTheWidth() {
+        Stream video = video(720, 576);
+        when(video.getSampleAspectRatio()).thenReturn(new Rational(16, 15));
+
+        MediaProbe probe = probe(video);
+
+        assertEquals(768, probe.width());
+        assertEquals(576, probe.height());
+    }
+
+    @Test
+    void squarePixelsAreLeftAlone() {
+        Stream video = video(1920, 1080);
+        when(video.getSampleAspectRatio()).thenReturn(new Rational(1, 1));
+
+        MediaProbe probe = probe(video);
+
+        assertEquals(1920, probe.width());
+        assertEquals(1080, probe.height());
+        assertEquals(30, probe.frameRate());
+    }
+
+    private Stream video(int width, int height) {
+        Stream video = mock(Stream.class);
+        when(video.getCodecType()).thenReturn(StreamType.VIDEO);
+        when(video.getWidth()).thenReturn(width);
+        when(video.getHeight()).thenReturn(height);
+        when(video.getAvgFrameRate()).thenReturn(new Rational(30, 1));
+        return video;
+    }
+
+    private MediaProbe probe(Stream video) {
+        Format format = mock(Format.class);
+        when(format.getDuration()).thenReturn(120f);
+        FFprobeResult result = mock(FFprobeResult.class);
+        when(result.getFormat()).thenReturn(format);
+        when(result.getStreams()).thenReturn(List.of(video));
+        when(supervisor.probe(any(), any(), anyDouble())).thenReturn(result);
+
+        return prober.probe(UUID.randomUUID(), Path.of("source.mp4"));
+    }
+}
@@ -0,0 +1,126 @@
+package dev.crt.processor.service.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class KeyframeChunkerTests {
+
+    private static final List<KeyframeChunker.Chunk> CHUNKS = List.of(
+            new KeyframeChunker.Chunk(0, 0, 11.5),
+            new KeyframeChunker.Chunk(1, 11.5, 17.506)
+    );
+
+    @TempDir
+    Path qualityFolder;
+
+    // stitchPlaylists does not probe, so no supervisor is needed
+    private final KeyframeChunker chunker = new KeyframeChunker(null);
+
+    @Test
+    void stitchesSegmentPlaylistsInChunkOrder() throws IOException {
+        write("chunk_000.m3u8",
+                "#EXTM3U",
+                "#EXT-X-VERSION:3",
+                "#EXT-X-TARGETDURATION:6",
+                "#EXT-X-MEDIA-SEQUENCE:0",
+                "#EXTINF:6.000000,",
+                "chunk_000_000.ts",
+                "#EXTINF:5.500000,",
+                "chunk_000_001.ts",
+                "#EXT-X-ENDLIST");
+        write("chunk_001.m3u8",
+                "#EXTM3U",
+                "#EXT-X-VERSION:3",
+                "#EXT-X-TARGETDURATION:7",
+                "#EXT-X-MEDIA-SEQUENCE:0",
+                "#EXTINF:6.006000,",
+                "chunk_001_000.ts",
+                "#EXT-X-ENDLIST");
+
+        chunker.stitchPlaylists(qualityFolder, CHUNKS);
+
+        assertEquals(List.of(
+                "#EXTM3U",
+                "#EXT-X-VERSION:3",
+                // Rounded up from the longest segment of any chunk
+                "#EXT-X-TARGETDURATION:7",
+                "#EXT-X-MEDIA-SEQUENCE:0",
+                "#EXT-X-PLAYLIST-TYPE:VOD",
+                "#EXTINF:6.000000,",
+                "chunk_000_000.ts",
+                "#EXTINF:5.500000,",
+                "chunk_000_001.ts",
+                "#EXTINF:6.006000,",
+                "chunk_001_000.ts",
+                "#EXT-X-ENDLIST"
+        ), read("index.m3u8"));
+        assertFalse(Files.exists(qualityFolder.resolve("chunk_000.m3u8")));
+        assertFalse(Files.exists(qualityFolder.resolve("chunk_001.m3u8")));
+    }
+
+    @Test
+    void keepsEachChunksInitSegmentAndByteRanges() throws IOException {
+        write("chunk_000.m3u8",
+                "#EXTM3U",
+                "#EXT-X-VERSION:7",
+                "#EXT-X-TARGETDURATION:6",
+                "#EXT-X-MAP:URI=\"chunk_000.mp4\",BYTERANGE=\"812@0\"",
+                "#EXTINF:6.000000,",
+                "#EXT-X-BYTERANGE:40000@812",
+                "chunk_000.mp4",
+                "#EXTINF:5.500000,",
+                "#EXT-X-BYTERANGE:38000@40812",
+                "chunk_000.mp4",
+                "#EXT-X-ENDLIST");
+        write("chunk_001.m3u8",
+                "#EXTM3U",
+                "#EXT-X-VERSION:7",
+                "#EXT-X-TARGETDURATION:6",
+                "#EXT-X-MAP:URI=\"chunk_001.mp4\",BYTERANGE=\"812@0\"",
+                "#EXTINF:6.006000,",
+                "#EXT-X-BYTERANGE:41000@812",
+                "chunk_001.mp4",
+                "#EXT-X-ENDLIST");
+
+        chunker.stitchPlaylists(qualityFolder, CHUNKS);
+
+        assertEquals(List.of(
+                "#EXTM3U",
+                // EXT-X-MAP with byte ranges needs version 6 or later, and every segment starts with a keyframe
+                "#EXT-X-VERSION:7",
+                "#EXT-X-TARGETDURATION:7",
+                "#EXT-X-MEDIA-SEQUENCE:0",
+                "#EXT-X-PLAYLIST-TYPE:VOD",
+                "#EXT-X-INDEPENDENT-SEGMENTS",
+                "#EXT-X-MAP:URI=\"chunk_000.mp4\",BYTERANGE=\"812@0\"",
+                "#EXTINF:6.000000,",
+                "#EXT-X-BYTERANGE:40000@812",
+                "chunk_000.mp4",
+                "#EXTINF:5.500000,",
+                "#EXT-X-BYTERANGE:38000@40812",
+                "chunk_000.mp4",
+                "#EXT-X-MAP:URI=\"chunk_001.mp4\",BYTERANGE=\"812@0\"",
+                "#EXTINF:6.006000,",
+                "#EXT-X-BYTERANGE:41000@812",
+                "chunk_001.mp4",
+                "#EXT-X-ENDLIST"
+        ), read("index.m3u8"));
+    }
+
+    private void write(String name, String... lines) throws IOException {
+        Files.write(qualityFolder.resolve(name), List.of(lines), StandardCharsets.UTF_8);
+    }
+
+    private List<String> read(String name) throws IOException {
+        return Files.readAllLines(qualityFolder.resolve(name), StandardCharsets.UTF_8);
+    }
+}
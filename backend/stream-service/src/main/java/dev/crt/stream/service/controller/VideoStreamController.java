@@ -1,109 +1,130 @@
 package dev.crt.stream.service.controller;
 
-import org.springframework.core.io.buffer.DataBuffer;
-import org.springframework.core.io.buffer.DataBufferUtils;
+import dev.crt.stream.service.service.FileSender;
+import dev.crt.stream.service.service.HttpCaching;
+import dev.crt.stream.service.service.ManifestCache;
+import dev.crt.stream.service.service.SegmentCache;
+import dev.crt.stream.service.service.SegmentPrefetcher;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
-import reactor.core.publisher.Flux;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
-import java.io.IOException;
 import java.net.URLDecoder;
-import java.nio.channels.AsynchronousFileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/v1/stream")
 public class VideoStreamController {
 
     private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
-    private static final int BUFFER_SIZE = 256 * 1024;
     private static final Path rootPath = Paths.get("uploads");
 
+    private final ManifestCache manifestCache;
+    private final FileSender fileSender;
+    private final SegmentCache segmentCache;
+    private final SegmentPrefetcher prefetcher;
+    private final HttpCaching httpCaching;
+
+    public VideoStreamController(ManifestCache manifestCache, FileSender fileSender, SegmentCache segmentCache,
+                                 SegmentPrefetcher prefetcher, HttpCaching httpCaching) {
+        this.manifestCache = manifestCache;
+        this.fileSender = fileSender;
+        this.segmentCache = segmentCache;
+        this.prefetcher = prefetcher;
+        this.httpCaching = httpCaching;
+    }
+
     @GetMapping
-    public Mono<ResponseEntity<Flux<DataBuffer>>> streamVideo(
+    public Mono<Void> streamVideo(
             @RequestParam String path,
-            @RequestHeader HttpHeaders headers) throws IOException {
+            ServerWebExchange exchange) {
 
+        ServerHttpResponse response = exchange.getResponse();
         String decodedPath = URLDecoder.decode(path, StandardCharsets.UTF_8);
         Path filePath = rootPath.resolve(decodedPath);
 
-        if (!Files.exists(filePath)) {
-            return Mono.just(ResponseEntity.notFound().build());
-        }
-
-        if (decodedPath.toLowerCase().endsWith(".m3u8")) {
-            String content = Files.readString(filePath, StandardCharsets.UTF_8);
-            String parentDir = rootPath.relativize(filePath.getParent()).toString().replace("\\", "/");
-
-            content = content.replaceAll("(?m)^(.+\\.ts)$",
-                    "http://localhost:8080/api/v1/stream?path=" + parentDir + "/$1");
-
-            DataBuffer buffer = bufferFactory.wrap(content.getBytes(StandardCharsets.UTF_8));
-            return Mono.just(ResponseEntity.ok()
-                    .contentType(MediaType.valueOf("application/x-mpegurl"))
-                    .body(Flux.just(buffer)));
+        if (ManifestCache.isManifest(decodedPath)) {
+            return manifestCache.get(filePath)
+                    .flatMap(manifest -> {
+                        if (httpCaching.notModified(exchange, manifest)) {
+                            return response.setComplete();
+                        }
+                        response.getHeaders().setContentType(MediaType.valueOf(manifest.contentType()));
+                        response.getHeaders().setContentLength(manifest.body().length);
+                        return response.writeWith(Mono.just(bufferFactory.wrap(manifest.body())));
+                    })
+                    .switchIfEmpty(Mono.defer(() -> notFound(response)));
         }
 
-        long fileSize = Files.size(filePath);
-        List<HttpRange> ranges = headers.getRange();
         MediaType mediaType = determineMediaType(decodedPath);
+        prefetcher.onRequest(filePath);
 
-        if (ranges.isEmpty()) {
-            Flux<DataBuffer> body = DataBufferUtils.read(
-                    filePath, bufferFactory, BUFFER_SIZE, StandardOpenOption.READ
-            );
-            return Mono.just(ResponseEntity.ok()
-                    .contentType(mediaType)
-                    .contentLength(fileSize)
-                    .body(body));
+        SegmentCache.Segment cached = segmentCache.isEnabled() ? segmentCache.lookup(filePath.normalize()) : null;
+        if (cached != null && segmentCache.isFresh(cached)) {
+            segmentCache.recordHit();
+            return send(exchange, cached, mediaType);
         }
 
-        HttpRange range = ranges.get(0);
-        long start = range.getRangeStart(fileSize);
-        long end = range.getRangeEnd(fileSize);
-        AtomicLong position = new AtomicLong(start);
-
-        Flux<DataBuffer> body = DataBufferUtils.readAsynchronousFileChannel(
-                        () -> AsynchronousFileChannel.open(filePath, StandardOpenOption.READ),
-                        start, bufferFactory, BUFFER_SIZE)
-                .handle((dataBuffer, sink) -> {
-                    long bufferStart = position.get();
-                    long bufferEnd = bufferStart + dataBuffer.readableByteCount() - 1;
-
-                    if (bufferEnd > end) {
-                        int sliceSize = (int) (end - bufferStart + 1);
-
-                        DataBuffer slice = dataBuffer.split(sliceSize);
-                        DataBufferUtils.release(dataBuffer);
-                        sink.next(slice);
-
-                        position.addAndGet(sliceSize);
-                    } else {
-                        sink.next(dataBuffer);
-                        position.addAndGet(dataBuffer.readableByteCount());
+        // Media is sent from memory or as a file region, so the stat (and, on admission, the one read that fills the
+        // cache) are the only blocking calls left, and they stay off the event loop
+        return Mono.fromCallable(() -> Files.isRegularFile(filePath)
+                        ? Optional.of(Files.readAttributes(filePath, BasicFileAttributes.class))
+                        : Optional.<BasicFileAttributes>empty())
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(attributes -> {
+                    SegmentCache.Segment segment = cached != null ? segmentCache.revalidate(cached, attributes.orElse(null)) : null;
+                    if (segment != null) {
+                        segmentCache.recordHit();
+                        return send(exchange, segment, mediaType);
+                    }
+                    if (attributes.isEmpty()) {
+                        return notFound(response);
                     }
 
-                    if (position.get() > end) {
-                        sink.complete();
+                    long fileSize = attributes.get().size();
+                    long lastModified = attributes.get().lastModifiedTime().toMillis();
+                    // A client revalidating its copy needs neither the bytes nor a place in the cache
+                    if (httpCaching.notModified(exchange, fileSize, lastModified)) {
+                        return response.setComplete();
+                    }
+                    segmentCache.recordMiss();
+                    List<HttpRange> ranges = httpCaching.ranges(exchange.getRequest().getHeaders(), fileSize, lastModified);
+
+                    if (segmentCache.shouldLoad(filePath.normalize(), fileSize)) {
+                        return segmentCache.load(filePath.normalize(), attributes.get())
+                                .map(Optional::of)
+                                .defaultIfEmpty(Optional.empty())
+                                .flatMap(loaded -> loaded.isPresent()
+                                        ? fileSender.send(loaded.get(), mediaType, ranges, response)
+                                        : fileSender.send(filePath, fileSize, mediaType, ranges, response));
                     }
+                    return fileSender.send(filePath, fileSize, mediaType, ranges, response);
                 });
+    }
+
+    private Mono<Void> send(ServerWebExchange exchange, SegmentCache.Segment segment, MediaType mediaType) {
+        if (httpCaching.notModified(exchange, segment.size(), segment.lastModified())) {
+            return exchange.getResponse().setComplete();
+        }
+        List<HttpRange> ranges = httpCaching.ranges(exchange.getRequest().getHeaders(), segment.size(), segment.lastModified());
+        return fileSender.send(segment, mediaType, ranges, exchange.getResponse());
+    }
 
-        return Mono.just(ResponseEntity.status(206)
-                .contentType(mediaType)
-                .header("Content-Range", "bytes " + start + "-" + end + "/" + fileSize)
-                .contentLength(end - start + 1)
-                .body(body));
+    private Mono<Void> notFound(ServerHttpResponse response) {
+        response.setStatusCode(HttpStatus.NOT_FOUND);
+        return response.setComplete();
     }
 
     private MediaType determineMediaType(String path) {
@@ -111,6 +132,9 @@ public class VideoStreamController {
         if (lower.endsWith(".m3u8")) return MediaType.valueOf("application/x-mpegurl");
         if (lower.endsWith(".ts")) return MediaType.valueOf("video/mp2t");
         if (lower.endsWith(".mp4")) return MediaType.valueOf("video/mp4");
+        if (lower.endsWith(".m4s")) return MediaType.valueOf("video/iso.segment");
+        if (lower.endsWith(".jpg")) return MediaType.IMAGE_JPEG;
+        if (lower.endsWith(".webp")) return MediaType.valueOf("image/webp");
         return MediaType.APPLICATION_OCTET_STREAM;
     }
 }
@@ -0,0 +1,99 @@
+package dev.crt.stream.service.service;
+
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Writes a file, or the first requested range of it, straight from the page cache to the socket.
+// On Reactor Netty the response is a ZeroCopyHttpOutputMessage backed by a FileRegion, so the bytes never enter
+// the JVM heap. Servers without zero-copy support (or TLS, where Netty has to encrypt in user space) get the same
+// range read through 256 KB buffers.
+@Component
+public class FileSender {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    // Requested slice of the content: start offset and byte count
+    private record Slice(long start, long count) {}
+
+    public Mono<Void> send(Path file, long fileSize, MediaType mediaType, List<HttpRange> ranges,
+                           ServerHttpResponse response) {
+        Slice slice = prepare(fileSize, mediaType, ranges, response);
+        if (slice == null || slice.count() == 0) {
+            return response.setComplete();
+        }
+
+        if (response instanceof ZeroCopyHttpOutputMessage zeroCopy) {
+            return zeroCopy.writeWith(file, slice.start(), slice.count());
+        }
+
+        return response.writeWith(DataBufferUtils.takeUntilByteCount(
+                DataBufferUtils.readAsynchronousFileChannel(
+                        () -> AsynchronousFileChannel.open(file, StandardOpenOption.READ),
+                        slice.start(), bufferFactory, BUFFER_SIZE),
+                slice.count()));
+    }
+
+    // Cached segments are already in direct memory: the response wraps a view of it without copying
+    public Mono<Void> send(SegmentCache.Segment segment, MediaType mediaType, List<HttpRange> ranges,
+                           ServerHttpResponse response) {
+        Slice slice = prepare(segment.size(), mediaType, ranges, response);
+        if (slice == null || slice.count() == 0) {
+            return response.setComplete();
+        }
+
+        ByteBuffer data = segment.data()
+                .position((int) slice.start())
+                .limit((int) (slice.start() + slice.count()));
+        return response.writeWith(Mono.just(bufferFactory.wrap(data.slice())));
+    }
+
+    // Sets status and headers for the first requested range, or the whole content without one.
+    // Null when the range cannot be satisfied and a 416 has been set.
+    private Slice prepare(long size, MediaType mediaType, List<HttpRange> ranges, ServerHttpResponse response) {
+        HttpHeaders headers = response.getHeaders();
+        headers.setContentType(mediaType);
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        long start = 0;
+        long end = size - 1;
+        if (!ranges.isEmpty()) {
+            HttpRange range = ranges.get(0);
+            try {
+                start = range.getRangeStart(size);
+                end = range.getRangeEnd(size);
+            } catch (IllegalArgumentException e) {
+                start = size;
+            }
+            if (start >= size || start > end) {
+                response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                headers.setContentLength(0);
+                return null;
+            }
+            response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+        } else {
+            response.setStatusCode(HttpStatus.OK);
+        }
+
+        long count = Math.max(0, end - start + 1);
+        headers.setContentLength(count);
+        return new Slice(start, count);
+    }
+}
@@ -0,0 +1,89 @@
+package dev.crt.stream.service.service;
+
+import java.util.BitSet;
+
+// TinyLFU popularity estimate: a count-min sketch of small counters behind a doorkeeper bloom filter.
+// A key's first access only sets its doorkeeper bits, so the long tail of one-off requests never takes a counter.
+// After sampleSize recorded accesses every counter is halved and the doorkeeper cleared, so old popularity fades.
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] counters;
+    private final BitSet doorkeeper;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(1024, expectedEntries * 4) - 1) << 1;
+        this.counters = new byte[size];
+        this.doorkeeper = new BitSet(size);
+        this.mask = size - 1;
+        this.sampleSize = Math.max(1024, expectedEntries * 10);
+    }
+
+    // Returns whether the key had been seen since the last reset, i.e. got past the doorkeeper
+    boolean increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean seen = inDoorkeeper(hash);
+
+        if (!seen) {
+            doorkeeper.set(index(hash, 0));
+            doorkeeper.set(index(hash, 1));
+        } else {
+            int min = minimum(hash);
+            // Conservative update: only the counters holding the minimum grow, which keeps collisions from inflating
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                if (counters[index] == min && min < MAX_COUNT) {
+                    counters[index]++;
+                }
+            }
+        }
+
+        if (++additions >= sampleSize) {
+            reset();
+        }
+        return seen;
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        return minimum(hash) + (inDoorkeeper(hash) ? 1 : 0);
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>= 1;
+        }
+        doorkeeper.clear();
+        additions /= 2;
+    }
+
+    private int minimum(int hash) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            min = Math.min(min, counters[index(hash, i)]);
+        }
+        return min;
+    }
+
+    private boolean inDoorkeeper(int hash) {
+        return doorkeeper.get(index(hash, 0)) && doorkeeper.get(index(hash, 1));
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
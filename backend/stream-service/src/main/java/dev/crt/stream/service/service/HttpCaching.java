@@ -0,0 +1,76 @@
+package dev.crt.stream.service.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+// Validators and lifetimes for stream responses, so browsers and proxies keep what they already fetched.
+// Playlists and storyboard indexes are revalidated on every use, which costs a 304 at most: their bytes depend on
+// the rewrite and the public base URL as well as on the file. Segments and sprite sheets are cached for a while,
+// but reprocessing a video writes them again under the same names, so they are only immutable when configured.
+@Component
+public class HttpCaching {
+
+    @Value("${stream.http-cache.segment-max-age-seconds:3600}")
+    private long segmentMaxAgeSeconds;
+
+    // Only safe while videos are never reprocessed in place
+    @Value("${stream.http-cache.segment-immutable:false}")
+    private boolean segmentImmutable;
+
+    // Strong validator from size and modification time: rewriting a file changes at least one of them
+    public static String etag(long size, long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    // Validator of content derived from a file; variant names whatever else the bytes depend on
+    public static String etag(long size, long lastModified, String variant) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "-" + variant + "\"";
+    }
+
+    // Sets ETag, Last-Modified and Cache-Control for a playlist or storyboard index. True when the response is a 304.
+    public boolean notModified(ServerWebExchange exchange, ManifestCache.Manifest manifest) {
+        exchange.getResponse().getHeaders().setCacheControl(CacheControl.noCache().cachePublic());
+        return exchange.checkNotModified(manifest.etag(), Instant.ofEpochMilli(manifest.lastModified()));
+    }
+
+    // Same for a segment or sprite sheet, sent as stored
+    public boolean notModified(ServerWebExchange exchange, long size, long lastModified) {
+        CacheControl cacheControl = CacheControl.maxAge(Duration.ofSeconds(segmentMaxAgeSeconds)).cachePublic();
+        exchange.getResponse().getHeaders().setCacheControl(segmentImmutable ? cacheControl.immutable() : cacheControl);
+        return exchange.checkNotModified(etag(size, lastModified), Instant.ofEpochMilli(lastModified));
+    }
+
+    // A Range request carrying If-Range only gets its range while the validator still names this version of the file;
+    // otherwise the whole, current file is sent
+    public List<HttpRange> ranges(HttpHeaders requestHeaders, long size, long lastModified) {
+        List<HttpRange> ranges = requestHeaders.getRange();
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ranges.isEmpty() || ifRange == null) {
+            return ranges;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag(size, lastModified)) ? ranges : List.of();
+        }
+        // Weak validators never satisfy If-Range
+        if (ifRange.startsWith("W/")) {
+            return List.of();
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return date / 1000 == lastModified / 1000 ? ranges : List.of();
+        } catch (DateTimeParseException e) {
+            return List.of();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package dev.crt.stream.service.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Playlists and storyboard indexes are small text files that players reload constantly, and every reference in them
+// has to be rewritten into a stream URL. The rewritten bytes are cached per file and revalidated against the file's
+// modification time and size, so a hit is served without parsing and, within the revalidation window, without
+// touching the disk. Progressive playlists that are still growing are picked up at the next revalidation.
+// Hits run on the event loop and take no lock; eviction happens on the loading path.
+@Component
+public class ManifestCache {
+
+    // etag and lastModified are the HTTP validators; the etag covers the file and how it was rewritten
+    public record Manifest(byte[] body, String contentType, String etag, long lastModified) {}
+
+    // segments is the playlist's segment order, kept so the prefetcher can relearn it without a re-read;
+    // usedAt is when the entry was last served, which orders eviction
+    private record Entry(Manifest manifest, List<Path> segments, long lastModified, long size, long checkedAt,
+                         AtomicLong usedAt) {}
+
+    private record Eldest(Path path, Entry entry, long usedAt) {}
+
+    // Segment and variant playlist references are both made absolute so master playlists resolve too
+    private static final Pattern PLAYLIST_REFERENCE = Pattern.compile("(?m)^([^#\\s].*\\.(?:ts|m3u8|mp4|m4s))$");
+    // fMP4 init segments and audio groups are referenced from tag attributes such as #EXT-X-MAP:URI="stream.mp4"
+    private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"(?!https?://)([^\"]+)\"");
+    // Storyboard cues point at sprite sheets next to the index; the #xywh fragment is kept as is
+    private static final Pattern SPRITE_REFERENCE = Pattern.compile("(?m)^([^#\\s]+\\.(?:jpg|webp))(#xywh=\\S+)?$");
+
+    // Bump when the rewrite rules change, so clients revalidating a playlist get the new rewrite
+    private static final int REWRITE_VERSION = 1;
+
+    private static final Path rootPath = Paths.get("uploads");
+
+    private final SegmentPrefetcher prefetcher;
+    private final String streamUrl;
+    private final String rewriteTag;
+    private final long revalidateMillis;
+    private final int maxEntries;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public ManifestCache(SegmentPrefetcher prefetcher,
+                         @Value("${stream.public-base-url:http://localhost:8080}") String publicBaseUrl,
+                         @Value("${stream.manifest-cache.max-entries:10000}") int maxEntries,
+                         @Value("${stream.manifest-cache.revalidate-ms:1000}") long revalidateMillis) {
+        this.prefetcher = prefetcher;
+        this.streamUrl = publicBaseUrl.replaceAll("/+$", "") + "/api/v1/stream?path=";
+        this.rewriteTag = Integer.toHexString(Objects.hash(streamUrl, REWRITE_VERSION));
+        this.revalidateMillis = revalidateMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public static boolean isManifest(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".m3u8") || lower.endsWith(".vtt");
+    }
+
+    // Empty when the file does not exist
+    public Mono<Manifest> get(Path filePath) {
+        Path key = filePath.normalize();
+        Entry cached = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.checkedAt() < revalidateMillis) {
+            // Second precision is plenty for eviction and spares popular playlists a write per request
+            if (now - cached.usedAt().get() >= 1000) {
+                cached.usedAt().set(now);
+            }
+            prefetcher.learnIfMissing(key, cached.segments());
+            return Mono.just(cached.manifest());
+        }
+
+        return Mono.fromCallable(() -> load(key, cached))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Manifest load(Path filePath, Entry cached) throws Exception {
+        if (!Files.exists(filePath)) {
+            entries.remove(filePath);
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long now = System.currentTimeMillis();
+
+        if (cached != null && cached.lastModified() == lastModified && cached.size() == attributes.size()) {
+            entries.put(filePath, new Entry(cached.manifest(), cached.segments(), lastModified, attributes.size(), now,
+                    new AtomicLong(now)));
+            prefetcher.learnIfMissing(filePath, cached.segments());
+            return cached.manifest();
+        }
+
+        String content = Files.readString(filePath, StandardCharsets.UTF_8);
+        String etag = HttpCaching.etag(attributes.size(), lastModified, rewriteTag);
+        Manifest manifest;
+        List<Path> segments = List.of();
+        if (filePath.toString().toLowerCase().endsWith(".vtt")) {
+            manifest = new Manifest(rewriteStoryboard(content, filePath).getBytes(StandardCharsets.UTF_8), "text/vtt",
+                    etag, lastModified);
+        } else {
+            // The playlist is parsed here anyway, so this is where the prefetcher learns its segment order
+            segments = prefetcher.segmentsOf(filePath, content);
+            prefetcher.learn(filePath, segments);
+            manifest = new Manifest(rewritePlaylist(content, filePath).getBytes(StandardCharsets.UTF_8),
+                    "application/x-mpegurl", etag, lastModified);
+        }
+
+        entries.put(filePath, new Entry(manifest, segments, lastModified, attributes.size(), now, new AtomicLong(now)));
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+        return manifest;
+    }
+
+    // Drops the least recently served manifests until a tenth of the entries are free, so a steady stream of new
+    // manifests does not evict on every load. One load evicts at a time; the others carry on.
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Snapshot the access times, which keep changing while this sorts
+            List<Eldest> eldest = new ArrayList<>();
+            entries.forEach((path, entry) -> eldest.add(new Eldest(path, entry, entry.usedAt().get())));
+            eldest.sort(Comparator.comparingLong(Eldest::usedAt));
+
+            int excess = entries.size() - (maxEntries - maxEntries / 10);
+            for (int i = 0; i < excess && i < eldest.size(); i++) {
+                entries.remove(eldest.get(i).path(), eldest.get(i).entry());
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private String rewritePlaylist(String content, Path filePath) {
+        String prefix = Matcher.quoteReplacement(streamUrl + parentDir(filePath) + "/");
+        content = PLAYLIST_REFERENCE.matcher(content).replaceAll(prefix + "$1");
+        return URI_ATTRIBUTE.matcher(content).replaceAll("URI=\"" + prefix + "$1\"");
+    }
+
+    private String rewriteStoryboard(String content, Path filePath) {
+        String prefix = Matcher.quoteReplacement(streamUrl + parentDir(filePath) + "/");
+        return SPRITE_REFERENCE.matcher(content).replaceAll(prefix + "$1$2");
+    }
+
+    private String parentDir(Path filePath) {
+        return rootPath.relativize(filePath.getParent()).toString().replace("\\", "/");
+    }
+}
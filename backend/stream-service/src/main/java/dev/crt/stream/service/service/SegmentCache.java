@@ -0,0 +1,252 @@
+package dev.crt.stream.service.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hot segments held in direct memory, so a viral video's first segments are read from the uploads volume once
+// instead of once per viewer. Admission follows W-TinyLFU:
+// - a file is only loaded on its second request within the sketch's sample; one-off requests stay on the zero-copy path
+// - new entries go into a small LRU window
+// - entries leaving the window only enter the main LRU if the sketch rates them above the main entries they would
+//   evict, so a scan over cold files cannot flush hot content
+// Entries remember the file's mtime and size and are dropped when a revalidation finds either changed.
+@Component
+public class SegmentCache {
+
+    // A cached file; checkedAt is when its mtime and size were last compared with the disk
+    public static final class Segment {
+        private final Path path;
+        private final ByteBuffer data;
+        private final long lastModified;
+        private volatile long checkedAt;
+
+        private Segment(Path path, ByteBuffer data, long lastModified, long checkedAt) {
+            this.path = path;
+            this.data = data;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+
+        // A read-only view, so concurrent responses never share a position
+        public ByteBuffer data() {
+            return data.asReadOnlyBuffer();
+        }
+
+        public long size() {
+            return data.capacity();
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+    }
+
+    @Value("${stream.segment-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${stream.segment-cache.revalidate-ms:1000}")
+    private long revalidateMillis;
+
+    private final long maxSegmentBytes;
+    private final long windowBudget;
+    private final long mainBudget;
+    private final FrequencySketch sketch;
+
+    // Both access-ordered: the first entry is always the least recently used
+    private final LinkedHashMap<Path, Segment> window = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<Path, Segment> main = new LinkedHashMap<>(256, 0.75f, true);
+    private long windowBytes;
+    private long mainBytes;
+    // Reads in progress, shared by every request for the same file until they complete
+    private final Map<Path, Mono<Segment>> loading = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter rejections;
+
+    public SegmentCache(@Value("${stream.segment-cache.max-bytes:268435456}") long maxBytes,
+                        @Value("${stream.segment-cache.max-segment-bytes:8388608}") long maxSegmentBytes,
+                        @Value("${stream.segment-cache.window-percent:1}") double windowPercent,
+                        MeterRegistry registry) {
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+        // The window must fit at least one segment, or nothing would ever reach the main area
+        this.windowBudget = Math.min(maxBytes, Math.max((long) (maxBytes * windowPercent / 100), this.maxSegmentBytes));
+        this.mainBudget = maxBytes - windowBudget;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1, maxBytes / (512 * 1024))));
+
+        this.hits = Counter.builder("stream.segment.cache.hits")
+                .description("Segment requests served from memory")
+                .register(registry);
+        this.misses = Counter.builder("stream.segment.cache.misses")
+                .description("Segment requests served from the uploads volume")
+                .register(registry);
+        this.evictions = Counter.builder("stream.segment.cache.evictions")
+                .description("Segments dropped from the cache to make room or because their file changed")
+                .register(registry);
+        this.rejections = Counter.builder("stream.segment.cache.rejections")
+                .description("Segments leaving the admission window that were less popular than what they would evict")
+                .register(registry);
+        Gauge.builder("stream.segment.cache.bytes", this, cache -> cache.usedBytes())
+                .description("Direct memory held by cached segments")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("stream.segment.cache.entries", this, cache -> cache.entryCount())
+                .description("Segments currently cached")
+                .register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Records the access and returns the cached segment, if any. It may be stale: see isFresh and revalidate.
+    public synchronized Segment lookup(Path path) {
+        sketch.increment(path);
+        Segment segment = window.get(path);
+        return segment != null ? segment : main.get(path);
+    }
+
+    // Membership check that, unlike lookup, does not count as an access
+    public synchronized boolean contains(Path path) {
+        return window.containsKey(path) || main.containsKey(path);
+    }
+
+    // Fresh segments are served without touching the disk at all
+    public boolean isFresh(Segment segment) {
+        return System.currentTimeMillis() - segment.checkedAt < revalidateMillis;
+    }
+
+    // Compares a cached segment with the file's current attributes; a changed or deleted file drops the segment
+    public Segment revalidate(Segment segment, BasicFileAttributes attributes) {
+        if (attributes != null && attributes.lastModifiedTime().toMillis() == segment.lastModified
+                && attributes.size() == segment.size()) {
+            segment.checkedAt = System.currentTimeMillis();
+            return segment;
+        }
+        invalidate(segment);
+        return null;
+    }
+
+    // Only files requested before (past the doorkeeper) and small enough are worth a copy in memory
+    public synchronized boolean shouldLoad(Path path, long size) {
+        return enabled && size > 0 && size <= maxSegmentBytes && sketch.frequency(path) > 1;
+    }
+
+    // Reads the whole file into direct memory and admits it into the window. Concurrent loads of the same file,
+    // e.g. a viral segment requested by many viewers at once, share one read. Empty when the file changed meanwhile.
+    public Mono<Segment> load(Path path, BasicFileAttributes attributes) {
+        // The read starts at the first subscription, after the entry is in the map, so the entry removed on
+        // completion is always this one
+        return loading.computeIfAbsent(path, key -> Mono.fromCallable(() -> read(key, attributes))
+                .subscribeOn(Schedulers.boundedElastic())
+                .doFinally(signal -> loading.remove(key))
+                .cache());
+    }
+
+    private Segment read(Path path, BasicFileAttributes attributes) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect((int) attributes.size());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+        }
+        // The file changed size while it was read; serve nothing from this copy
+        if (data.hasRemaining()) {
+            return null;
+        }
+        data.flip();
+
+        Segment segment = new Segment(path, data, attributes.lastModifiedTime().toMillis(), System.currentTimeMillis());
+        admit(segment);
+        return segment;
+    }
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    private synchronized void admit(Segment segment) {
+        remove(segment.path);
+        window.put(segment.path, segment);
+        windowBytes += segment.size();
+
+        while (windowBytes > windowBudget && !window.isEmpty()) {
+            Iterator<Map.Entry<Path, Segment>> eldest = window.entrySet().iterator();
+            Segment candidate = eldest.next().getValue();
+            eldest.remove();
+            windowBytes -= candidate.size();
+            promote(candidate);
+        }
+    }
+
+    // The window's victim competes with the main area's least recently used entries for their space
+    private void promote(Segment candidate) {
+        if (candidate.size() > mainBudget) {
+            evictions.increment();
+            return;
+        }
+        int candidateFrequency = sketch.frequency(candidate.path);
+
+        while (mainBytes + candidate.size() > mainBudget) {
+            Iterator<Map.Entry<Path, Segment>> eldest = main.entrySet().iterator();
+            Segment victim = eldest.next().getValue();
+            if (candidateFrequency <= sketch.frequency(victim.path)) {
+                rejections.increment();
+                return;
+            }
+            eldest.remove();
+            mainBytes -= victim.size();
+            evictions.increment();
+        }
+        main.put(candidate.path, candidate);
+        mainBytes += candidate.size();
+    }
+
+    private synchronized void invalidate(Segment segment) {
+        // Only drop the exact copy that was checked; a fresher one may have replaced it meanwhile
+        if (window.get(segment.path) == segment || main.get(segment.path) == segment) {
+            remove(segment.path);
+            evictions.increment();
+        }
+    }
+
+    private void remove(Path path) {
+        Segment removed = window.remove(path);
+        if (removed != null) {
+            windowBytes -= removed.size();
+        }
+        removed = main.remove(path);
+        if (removed != null) {
+            mainBytes -= removed.size();
+        }
+    }
+
+    private synchronized long usedBytes() {
+        return windowBytes + mainBytes;
+    }
+
+    private synchronized int entryCount() {
+        return window.size() + main.size();
+    }
+}
@@ -0,0 +1,276 @@
+package dev.crt.stream.service.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// HLS playback is sequential, so a request for segment N announces N+1 and N+2. Segment order is learnt from the
+// media playlists the manifest cache already reads (and relearnt from its cached copy once forgotten here), and
+// every segment request warms the next few segments in the
+// background: into the segment cache when they are popular enough for it, otherwise just into the OS page cache,
+// so the player's next request does not wait on a cold read from the uploads volume.
+// Segment and manifest requests run on the event loop, so they only read the concurrent indexes here: learning a
+// playlist takes a lock on that playlist alone, and relearning and eviction run in the background.
+@Component
+public class SegmentPrefetcher {
+
+    private record Position(Path playlist, List<Path> segments, int index) {}
+
+    // A learnt playlist and when one of its segments was last requested
+    private static final class Learnt {
+        private final List<Path> segments;
+        private volatile long usedAt = System.currentTimeMillis();
+
+        private Learnt(List<Path> segments) {
+            this.segments = segments;
+        }
+    }
+
+    private record Eldest(Path playlist, Learnt learnt, long usedAt) {}
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    @Value("${stream.prefetch.enabled:true}")
+    private boolean enabled;
+
+    @Value("${stream.prefetch.segments:2}")
+    private int segmentsAhead;
+
+    // A segment warmed this recently is not read again, however many viewers are one segment behind it
+    @Value("${stream.prefetch.recent-ms:30000}")
+    private long recentMillis;
+
+    private final SegmentCache segmentCache;
+    private final Semaphore permits;
+    private final int maxTrackedSegments;
+    private final Map<Path, Position> positions = new ConcurrentHashMap<>();
+    // The playlist nobody played for longest is forgotten first, as a whole
+    private final Map<Path, Learnt> playlists = new ConcurrentHashMap<>();
+    private final AtomicInteger trackedSegments = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final Set<Path> relearning = ConcurrentHashMap.newKeySet();
+    private final Map<Path, Long> recent = new ConcurrentHashMap<>();
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final Counter reads;
+    private final Counter dropped;
+
+    public SegmentPrefetcher(SegmentCache segmentCache,
+                             @Value("${stream.prefetch.max-concurrent:8}") int maxConcurrent,
+                             @Value("${stream.prefetch.max-tracked-segments:200000}") int maxTrackedSegments,
+                             MeterRegistry registry) {
+        this.segmentCache = segmentCache;
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxTrackedSegments = maxTrackedSegments;
+
+        this.reads = Counter.builder("stream.prefetch.reads")
+                .description("Segments read ahead of the player")
+                .register(registry);
+        this.dropped = Counter.builder("stream.prefetch.dropped")
+                .description("Read-aheads skipped because the concurrency cap was reached")
+                .register(registry);
+    }
+
+    // Segment order of a media playlist. Empty for master playlists and byte-range playlists, whose segments
+    // are ranges of one file.
+    public List<Path> segmentsOf(Path playlist, String content) {
+        List<Path> segments = new ArrayList<>();
+        for (String line : content.split("\n")) {
+            String entry = line.trim();
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+            if (entry.endsWith(".m3u8") || entry.contains("://")) {
+                return List.of();
+            }
+            Path segment = playlist.resolveSibling(entry).normalize();
+            if (!segments.isEmpty() && segments.get(segments.size() - 1).equals(segment)) {
+                return List.of();
+            }
+            segments.add(segment);
+        }
+        return List.copyOf(segments);
+    }
+
+    // Records the segment order of a playlist that was (re)read, replacing what was known about it.
+    // Blocking callers only: it writes a position per segment.
+    public void learn(Path playlist, List<Path> segments) {
+        if (!enabled) {
+            return;
+        }
+        playlists.compute(playlist, (key, previous) -> {
+            forget(key, previous);
+            if (segments.size() < 2) {
+                return null;
+            }
+            trackedSegments.addAndGet(segments.size());
+            for (int i = 0; i < segments.size() - 1; i++) {
+                positions.put(segments.get(i), new Position(key, segments, i));
+            }
+            return new Learnt(segments);
+        });
+
+        if (trackedSegments.get() > maxTrackedSegments) {
+            evictInBackground();
+        }
+    }
+
+    // For manifest cache hits on the event loop: a playlist forgotten here is learnt again from the cached order,
+    // in the background
+    public void learnIfMissing(Path playlist, List<Path> segments) {
+        if (!enabled || segments.size() < 2 || playlists.containsKey(playlist) || !relearning.add(playlist)) {
+            return;
+        }
+        Mono.fromRunnable(() -> {
+                    // A re-read may have learnt a newer order in the meantime
+                    if (!playlists.containsKey(playlist)) {
+                        learn(playlist, segments);
+                    }
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .doFinally(signal -> relearning.remove(playlist))
+                .subscribe(null, error -> System.err.println("Relearning " + playlist + " failed: " + error.getMessage()));
+    }
+
+    // Called with the playlist's map entry locked
+    private void forget(Path playlist, Learnt learnt) {
+        if (learnt == null) {
+            return;
+        }
+        trackedSegments.addAndGet(-learnt.segments.size());
+        for (Path segment : learnt.segments) {
+            positions.computeIfPresent(segment, (key, position) -> position.playlist().equals(playlist) ? null : position);
+        }
+    }
+
+    // Forgets the least recently played playlists until a tenth of the budget is free, so a steady stream of new
+    // playlists does not evict on every learn
+    private void evictInBackground() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        Mono.fromRunnable(this::evict)
+                .subscribeOn(Schedulers.boundedElastic())
+                .doFinally(signal -> evicting.set(false))
+                .subscribe(null, error -> System.err.println("Prefetch eviction failed: " + error.getMessage()));
+    }
+
+    private void evict() {
+        int target = maxTrackedSegments - maxTrackedSegments / 10;
+        // Snapshot the access times, which keep changing while this sorts
+        List<Eldest> eldest = new ArrayList<>();
+        playlists.forEach((playlist, learnt) -> eldest.add(new Eldest(playlist, learnt, learnt.usedAt)));
+        eldest.sort(Comparator.comparingLong(Eldest::usedAt));
+
+        for (Eldest entry : eldest) {
+            if (trackedSegments.get() <= target || playlists.size() <= 1) {
+                return;
+            }
+            // Unless the playlist was relearnt since the snapshot
+            playlists.computeIfPresent(entry.playlist(), (key, learnt) -> {
+                if (learnt != entry.learnt()) {
+                    return learnt;
+                }
+                forget(key, learnt);
+                return null;
+            });
+        }
+    }
+
+    // Called for every segment request; returns immediately and reads ahead in the background
+    public void onRequest(Path segment) {
+        if (!enabled) {
+            return;
+        }
+        Position position = positions.get(segment.normalize());
+        if (position == null) {
+            return;
+        }
+        // Keeps a playlist that is being watched from being evicted
+        Learnt learnt = playlists.get(position.playlist());
+        if (learnt != null) {
+            learnt.usedAt = System.currentTimeMillis();
+        }
+
+        int last = Math.min(position.segments().size() - 1, position.index() + segmentsAhead);
+        for (int i = position.index() + 1; i <= last; i++) {
+            Path next = position.segments().get(i);
+            if (segmentCache.contains(next) || isRecent(next) || !inFlight.add(next)) {
+                continue;
+            }
+            if (!permits.tryAcquire()) {
+                inFlight.remove(next);
+                dropped.increment();
+                return;
+            }
+
+            Mono.fromRunnable(() -> warm(next))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .doFinally(signal -> {
+                        inFlight.remove(next);
+                        permits.release();
+                    })
+                    .subscribe(null, error -> System.err.println("Prefetch of " + next + " failed: " + error.getMessage()));
+        }
+    }
+
+    private boolean isRecent(Path segment) {
+        Long warmedAt = recent.get(segment);
+        return warmedAt != null && System.currentTimeMillis() - warmedAt < recentMillis;
+    }
+
+    private void warm(Path segment) {
+        try {
+            if (!Files.isRegularFile(segment)) {
+                return;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(segment, BasicFileAttributes.class);
+            if (segmentCache.shouldLoad(segment, attributes.size())) {
+                // Joins the read when a player request is already loading the same segment
+                segmentCache.load(segment, attributes).block();
+            } else {
+                readThrough(segment);
+            }
+            long now = System.currentTimeMillis();
+            recent.put(segment, now);
+            if (recent.size() > maxTrackedSegments) {
+                recent.values().removeIf(warmedAt -> now - warmedAt >= recentMillis);
+            }
+            reads.increment();
+        } catch (IOException e) {
+            System.err.println("Prefetch of " + segment + " failed: " + e.getMessage());
+        }
+    }
+
+    // Reading the file once leaves it in the page cache for the zero-copy send that follows
+    private void readThrough(Path segment) throws IOException {
+        ByteBuffer buffer = READ_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            do {
+                buffer.clear();
+            } while (channel.read(buffer) > 0);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package dev.crt.stream.service.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrequencySketchTests {
+
+    // The smallest sketch resets after 1024 recorded accesses
+    private static final int SAMPLE_SIZE = 1024;
+
+    @Test
+    void firstAccessOnlyPassesTheDoorkeeper() {
+        FrequencySketch sketch = new FrequencySketch(1);
+
+        assertEquals(0, sketch.frequency("a.ts"));
+        assertFalse(sketch.increment("a.ts"));
+        assertEquals(1, sketch.frequency("a.ts"));
+        assertTrue(sketch.increment("a.ts"));
+        assertEquals(2, sketch.frequency("a.ts"));
+    }
+
+    @Test
+    void countersSaturate() {
+        FrequencySketch sketch = new FrequencySketch(1);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a.ts");
+        }
+
+        // 15 in the counters plus the doorkeeper
+        assertEquals(16, sketch.frequency("a.ts"));
+    }
+
+    @Test
+    void resetHalvesCountersAndClearsTheDoorkeeper() {
+        FrequencySketch sketch = new FrequencySketch(1);
+        for (int i = 0; i < 11; i++) {
+            sketch.increment("hot.ts");
+        }
+        for (int i = 11; i < SAMPLE_SIZE - 1; i++) {
+            sketch.increment("other.ts");
+        }
+        assertEquals(11, sketch.frequency("hot.ts"));
+
+        sketch.increment("other.ts");
+
+        assertEquals(5, sketch.frequency("hot.ts"));
+        assertFalse(sketch.increment("hot.ts"));
+        assertEquals(6, sketch.frequency("hot.ts"));
+    }
+}
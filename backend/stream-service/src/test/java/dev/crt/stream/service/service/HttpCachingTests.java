@@ -0,0 +1,80 @@
+package dev.crt.stream.service.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpCachingTests {
+
+    private static final long SIZE = 4096;
+    // Not on a whole second, as file modification times rarely are
+    private static final long LAST_MODIFIED = 1_700_000_000_250L;
+
+    private final HttpCaching caching = new HttpCaching();
+
+    @Test
+    void rangeWithoutIfRangeIsKept() {
+        assertEquals(List.of(HttpRange.createByteRange(0, 99)), caching.ranges(range(null), SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    void matchingEtagKeepsTheRange() {
+        HttpHeaders headers = range(HttpCaching.etag(SIZE, LAST_MODIFIED));
+
+        assertEquals(List.of(HttpRange.createByteRange(0, 99)), caching.ranges(headers, SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    void etagOfAnotherVersionSendsTheWholeFile() {
+        HttpHeaders headers = range(HttpCaching.etag(SIZE, LAST_MODIFIED - 1000));
+
+        assertTrue(caching.ranges(headers, SIZE, LAST_MODIFIED).isEmpty());
+    }
+
+    @Test
+    void weakEtagSendsTheWholeFile() {
+        HttpHeaders headers = range("W/" + HttpCaching.etag(SIZE, LAST_MODIFIED));
+
+        assertTrue(caching.ranges(headers, SIZE, LAST_MODIFIED).isEmpty());
+    }
+
+    @Test
+    void dateIsComparedToTheSecond() {
+        HttpHeaders headers = range(httpDate(LAST_MODIFIED));
+
+        assertEquals(List.of(HttpRange.createByteRange(0, 99)), caching.ranges(headers, SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    void olderDateSendsTheWholeFile() {
+        HttpHeaders headers = range(httpDate(LAST_MODIFIED - 1000));
+
+        assertTrue(caching.ranges(headers, SIZE, LAST_MODIFIED).isEmpty());
+    }
+
+    @Test
+    void unparsableIfRangeSendsTheWholeFile() {
+        assertTrue(caching.ranges(range("yesterday"), SIZE, LAST_MODIFIED).isEmpty());
+    }
+
+    private HttpHeaders range(String ifRange) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setRange(List.of(HttpRange.createByteRange(0, 99)));
+        if (ifRange != null) {
+            headers.set(HttpHeaders.IF_RANGE, ifRange);
+        }
+        return headers;
+    }
+
+    private String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+}
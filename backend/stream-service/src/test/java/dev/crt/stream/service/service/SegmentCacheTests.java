@@ -0,0 +1,131 @@
+package dev.crt.stream.service.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentCacheTests {
+
+    // The window holds one segment and the main area three
+    private static final int SEGMENT_BYTES = 1000;
+
+    @TempDir
+    Path folder;
+
+    private SimpleMeterRegistry registry;
+    private SegmentCache cache;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        cache = new SegmentCache(4 * SEGMENT_BYTES, SEGMENT_BYTES, 1, registry);
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "revalidateMillis", 1000L);
+    }
+
+    @Test
+    void loadsOnlyFromTheSecondRequest() throws IOException {
+        Path segment = segment("a.ts");
+
+        cache.lookup(segment);
+        assertFalse(cache.shouldLoad(segment, SEGMENT_BYTES));
+        cache.lookup(segment);
+        assertTrue(cache.shouldLoad(segment, SEGMENT_BYTES));
+        assertFalse(cache.shouldLoad(segment, SEGMENT_BYTES + 1));
+    }
+
+    @Test
+    void scanOfColdSegmentsDoesNotFlushHotOnes() throws IOException {
+        Path[] hot = {segment("hot0.ts"), segment("hot1.ts"), segment("hot2.ts")};
+        for (Path path : hot) {
+            request(path, 5);
+        }
+        // Pushes the last hot segment out of the window into the main area
+        request(segment("push.ts"), 2);
+
+        for (int i = 0; i < 5; i++) {
+            request(segment("cold" + i + ".ts"), 2);
+        }
+
+        for (Path path : hot) {
+            assertTrue(cache.contains(path), path + " was evicted");
+        }
+        for (int i = 0; i < 4; i++) {
+            assertFalse(cache.contains(folder.resolve("cold" + i + ".ts")));
+        }
+        // The newest cold segment is still in the window
+        assertTrue(cache.contains(folder.resolve("cold4.ts")));
+        assertEquals(5, registry.counter("stream.segment.cache.rejections").count());
+    }
+
+    @Test
+    void popularNewcomerEvictsTheLeastRecentlyUsedEntry() throws IOException {
+        Path[] hot = {segment("hot0.ts"), segment("hot1.ts"), segment("hot2.ts")};
+        for (Path path : hot) {
+            request(path, 5);
+        }
+        request(segment("push.ts"), 2);
+
+        request(segment("viral.ts"), 10);
+        request(segment("next.ts"), 2);
+
+        assertTrue(cache.contains(folder.resolve("viral.ts")));
+        assertFalse(cache.contains(hot[0]));
+        assertTrue(cache.contains(hot[1]));
+        assertTrue(cache.contains(hot[2]));
+    }
+
+    @Test
+    void concurrentLoadsShareOneRead() throws IOException {
+        Path segment = segment("a.ts");
+        BasicFileAttributes attributes = Files.readAttributes(segment, BasicFileAttributes.class);
+
+        Mono<SegmentCache.Segment> first = cache.load(segment, attributes);
+        assertSame(first, cache.load(segment, attributes));
+
+        assertNotNull(first.block());
+        // Once the read completes the next load reads again
+        assertNotSame(first, cache.load(segment, attributes));
+    }
+
+    @Test
+    void changedFileDropsTheSegment() throws IOException {
+        Path path = segment("a.ts");
+        SegmentCache.Segment segment = cache.load(path, Files.readAttributes(path, BasicFileAttributes.class)).block();
+        assertNotNull(segment);
+
+        Files.write(path, new byte[SEGMENT_BYTES / 2]);
+
+        assertNull(cache.revalidate(segment, Files.readAttributes(path, BasicFileAttributes.class)));
+        assertFalse(cache.contains(path));
+    }
+
+    private Path segment(String name) throws IOException {
+        return Files.write(folder.resolve(name), new byte[SEGMENT_BYTES]);
+    }
+
+    // Records the requests as lookups, then loads the segment as the controller would
+    private void request(Path path, int requests) throws IOException {
+        for (int i = 0; i < requests; i++) {
+            cache.lookup(path);
+        }
+        assertTrue(cache.shouldLoad(path, SEGMENT_BYTES));
+        assertNotNull(cache.load(path, Files.readAttributes(path, BasicFileAttributes.class)).block());
+    }
+}
@@ -42,9 +42,10 @@ public class UploadService {
                     );
 
                     return kafkaPublisher.sendEvent("video.uploaded.event", successEvent.videoId().toString(), successEvent)
+                            // Nothing will ever reference these files, so remove them by their real relative paths
                             .onErrorResume(err -> Mono.when(
-                                    storageService.delete(img.getImageName()).onErrorResume(e -> Mono.empty()),
-                                    storageService.delete(vid.getVideoId().toString()).onErrorResume(e -> Mono.empty())
+                                    storageService.delete(img.getPublicUrl()).onErrorResume(e -> Mono.empty()),
+                                    storageService.delete("videos/" + vid.getVideoId()).onErrorResume(e -> Mono.empty())
                             ).then(Mono.error(err)));
                 })
                 .onErrorResume(error -> {
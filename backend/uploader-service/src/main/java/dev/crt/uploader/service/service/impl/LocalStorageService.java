@@ -5,12 +5,15 @@ import dev.crt.uploader.service.service.StorageService;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Comparator;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 @Service
 public class LocalStorageService implements StorageService {
@@ -74,14 +77,22 @@ public class LocalStorageService implements StorageService {
                 .thenReturn("avatars/" + fileName);
     }
 
+    // objectName is a path relative to the storage root; folders are deleted with their contents
     @Override
     public Mono<Void> delete(String objectName) {
-        try {
-            Path filePath = rootPath.resolve(objectName).normalize();
-            Files.deleteIfExists(filePath);
-            return Mono.empty();
-        } catch (IOException e) {
-            return Mono.error(new StorageException("Failed to delete file: "+objectName, e));
-        }
+        return Mono.<Void>fromCallable(() -> {
+                    Path filePath = rootPath.resolve(objectName).normalize();
+                    if (!filePath.startsWith(rootPath) || filePath.equals(rootPath) || !Files.exists(filePath)) {
+                        return null;
+                    }
+                    try (Stream<Path> paths = Files.walk(filePath)) {
+                        for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                    return null;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorMap(IOException.class, e -> new StorageException("Failed to delete file: " + objectName, e));
     }
 }
@@ -2,8 +2,10 @@ package dev.crt.user.service.repository;
 
 import dev.crt.user.service.domain.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -11,4 +13,7 @@ import java.util.UUID;
 public interface UserRepository extends JpaRepository<User, UUID> {
 
     Optional<User> findByEmail(String email);
+
+    @Query("SELECT u.avatarUrl FROM User u WHERE u.avatarUrl IS NOT NULL")
+    List<String> findAllAvatarUrls();
 }
@@ -0,0 +1,114 @@
+package dev.crt.user.service.service;
+
+import dev.crt.user.service.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Deletes avatar files no user points at: replaced avatars and uploads that never made it to a profile.
+// Files modified within the grace period are left alone, since an avatar is uploaded before the profile is updated.
+@Service
+public class AvatarReconciler {
+
+    private final Path avatarsPath = Paths.get("uploads").resolve("avatars");
+    private final UserRepository userRepository;
+
+    @Value("${storage-gc.enabled:true}")
+    private boolean enabled;
+
+    // Only report what would be reclaimed
+    @Value("${storage-gc.dry-run:false}")
+    private boolean dryRun;
+
+    @Value("${storage-gc.grace-period-hours:24}")
+    private long gracePeriodHours;
+
+    @Value("${storage-gc.batch-size:100}")
+    private int batchSize;
+
+    @Value("${storage-gc.batch-pause-ms:1000}")
+    private long batchPauseMs;
+
+    public AvatarReconciler(UserRepository userRepository) {
+        this.userRepository = userRepository;
+    }
+
+    @Scheduled(initialDelayString = "${storage-gc.initial-delay-minutes:10}",
+            fixedDelayString = "${storage-gc.interval-minutes:360}", timeUnit = TimeUnit.MINUTES)
+    public void scheduledRun() {
+        if (enabled) {
+            reconcile();
+        }
+    }
+
+    public synchronized void reconcile() {
+        List<Path> orphans = new ArrayList<>();
+        long reclaimable = 0;
+
+        try {
+            if (!Files.isDirectory(avatarsPath)) {
+                return;
+            }
+            Set<String> referenced = new HashSet<>(userRepository.findAllAvatarUrls());
+            Instant cutoff = Instant.now().minusSeconds(gracePeriodHours * 3600);
+
+            try (Stream<Path> files = Files.list(avatarsPath)) {
+                for (Path file : files.filter(Files::isRegularFile).toList()) {
+                    if (!referenced.contains("avatars/" + file.getFileName())
+                            && Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                        orphans.add(file);
+                        reclaimable += Files.size(file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Avatar GC: scanning " + avatarsPath.toAbsolutePath() + " failed: " + e.getMessage());
+            return;
+        }
+
+        System.out.println("Avatar GC" + (dryRun ? " (dry run)" : "") + ": " + orphans.size() + " orphaned avatars, "
+                + megabytes(reclaimable) + " reclaimable");
+        if (dryRun || orphans.isEmpty()) {
+            return;
+        }
+
+        // Deletes in batches with a pause in between, so the sweep never competes with uploads for the disk
+        int deleted = 0;
+        for (int start = 0; start < orphans.size(); start += batchSize) {
+            if (start > 0) {
+                try {
+                    Thread.sleep(batchPauseMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (Path file : orphans.subList(start, Math.min(start + batchSize, orphans.size()))) {
+                try {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                } catch (IOException e) {
+                    System.err.println("Avatar GC: could not delete " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        System.out.println("Avatar GC: deleted " + deleted + " of " + orphans.size() + " orphaned avatars");
+    }
+
+    private String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / 1048576.0);
+    }
+}
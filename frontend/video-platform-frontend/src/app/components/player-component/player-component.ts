@@ -29,6 +29,7 @@ export class PlayerComponent implements OnInit, OnDestroy {
   videoUrl!: SafeUrl;
   originalUrls!: VideoUrls;
   currentQuality = '360p';
+  readonly autoQuality = 'master';
   title = '';
   description = '';
   showSettingsMenu = false;
@@ -72,13 +73,20 @@ ngOnInit() {
   this.title = state.title;
   this.description = state.description;
 
+  // Only rendition keys like "720p" are qualities; "master" is the adaptive playlist over all of them
   this.availableQualities = Object.keys(this.originalUrls)
+    .filter(key => /^\d+p$/.test(key))
     .sort((a, b) => {
         const numA = parseInt(a.replace('p', ''));
         const numB = parseInt(b.replace('p', ''));
         return numA + numB;
       });
 
+    if (this.originalUrls[this.autoQuality]) {
+      this.availableQualities.unshift(this.autoQuality);
+      this.currentQuality = this.autoQuality;
+    }
+
     if (!this.availableQualities.includes(this.currentQuality) && this.availableQualities.length > 0) {
       this.currentQuality = this.availableQualities[0]; 
     }
@@ -106,6 +114,10 @@ ngOnInit() {
   const token = localStorage.getItem('jwt_token');
 
   if (Hls.isSupported()) {
+    if (this.hls) {
+      this.hls.destroy();
+    }
+
     const hls = new Hls({
       xhrSetup: (xhr, url) => {
         if (token) {
@@ -114,6 +126,7 @@ ngOnInit() {
       }
     });
 
+    this.hls = hls;
     hls.loadSource(url);
     hls.attachMedia(this.videoPlayer.nativeElement);
 